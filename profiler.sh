@@ -24,7 +24,7 @@ usage() {
     echo "  -g                print method signatures"
     echo "  -a                annotate Java method names"
     echo "  -l                prepend library names"
-    echo "  -o fmt            output format: flat|traces|collapsed|flamegraph|tree|jfr"
+    echo "  -o fmt            output format: flat|traces|collapsed|flamegraph|tree|jfr|binary"
     echo "  -I include        output only stack traces containing the specified pattern"
     echo "  -X exclude        exclude stack traces with the specified pattern"
     echo "  -v, --version     display version string"
@@ -35,14 +35,21 @@ usage() {
     echo ""
     echo "  --alloc bytes     allocation profiling interval in bytes"
     echo "  --lock duration   lock profiling threshold in nanoseconds"
+    echo "  --overhead pct    increase interval to keep profiling overhead below pct%"
     echo "  --total           accumulate the total value (time, bytes, etc.)"
     echo "  --all-user        only include user-mode events"
     echo "  --sched           group threads by scheduling policy"
+    echo "  --tags            profile different thread context tags separately"
+    echo "  --scoped          profile only inside ProfilingScope regions"
     echo "  --cstack mode     how to traverse C stack: fp|lbr|no"
     echo "  --begin function  begin profiling when function is executed"
     echo "  --end function    end profiling when function is executed"
     echo "  --ttsp            time-to-safepoint profiling"
     echo "  --jfrsync config  synchronize profiler with JFR recording"
+    echo "  --loop time       switch JFR output to a new file every time period"
+    echo "  --loopfiles N     keep only N last completed files of the loop"
+    echo "  --loopsize bytes  keep only the last completed files within the size limit"
+    echo "  --tracemem bytes  limit memory used by the call trace storage"
     echo "  --fdtransfer      use fdtransfer to serve perf requests"
     echo "                    from the non-privileged target"
     echo ""
@@ -219,7 +226,7 @@ while [ $# -gt 0 ]; do
         --samples|--total)
             FORMAT="$FORMAT,${1#--}"
             ;;
-        --alloc|--lock|--chunksize|--chunktime)
+        --alloc|--lock|--overhead|--chunksize|--chunktime|--loop|--loopfiles|--loopsize|--tracemem)
             PARAMS="$PARAMS,${1#--}=$2"
             shift
             ;;
@@ -229,6 +236,12 @@ while [ $# -gt 0 ]; do
         --sched)
             PARAMS="$PARAMS,sched"
             ;;
+        --tags)
+            PARAMS="$PARAMS,tags"
+            ;;
+        --scoped)
+            PARAMS="$PARAMS,scoped"
+            ;;
         --cstack|--call-graph)
             PARAMS="$PARAMS,cstack=$2"
             shift
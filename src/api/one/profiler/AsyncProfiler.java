@@ -16,7 +16,22 @@
 
 package one.profiler;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Java API for in-process profiling. Serves as a wrapper around
@@ -27,6 +42,41 @@ import java.io.IOException;
 public class AsyncProfiler implements AsyncProfilerMXBean {
     private static AsyncProfiler instance;
 
+    // Layout of the getMetrics0() array, see enum Metric in profiler.h
+    private static final int METRIC_SAMPLES = 0;
+    private static final int METRIC_ACTIVE_TIME = 1;
+    private static final int METRIC_HANDLER_TIME = 2;
+    private static final int METRIC_TABLE_MEMORY = 3;
+    private static final int METRIC_TRACE_MEMORY = 4;
+    private static final int METRIC_TRACE_COUNT = 5;
+    private static final int METRIC_TABLE_CAPACITY = 6;
+    private static final int METRIC_TRACE_OVERFLOWS = 7;
+    private static final int METRIC_TRACE_EVICTIONS = 8;
+    private static final int METRIC_JFR_FLUSHES = 9;
+    private static final int METRIC_JFR_BYTES = 10;
+    private static final int METRIC_FAILURES = 11;
+    private static final int METRIC_HANDLER_HISTOGRAM = METRIC_FAILURES + 12;
+
+    // Reasons of dropped samples indexed by -ASGCT_Failure, as reported in the text profile
+    private static final String[] FAILURE_NAMES = {
+            null, "unexpected_state", "GC_active", null, null, "unknown_Java",
+            "not_walkable_Java", "unexpected_state", null, "deoptimization", "safepoint", "skipped"
+    };
+
+    private ProfileSnapshot.Decoder deltaDecoder;
+    private ExecutorService dumpExecutor;
+
+    private final ConcurrentHashMap<String, Integer> scopeIds = new ConcurrentHashMap<String, Integer>();
+
+    // Context of the current thread shared with the native library, null if not available
+    private final ThreadLocal<ByteBuffer> contextBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            ByteBuffer buf = getContextBuffer0();
+            return buf != null ? buf.order(ByteOrder.nativeOrder()) : null;
+        }
+    };
+
     private AsyncProfiler() {
     }
 
@@ -98,6 +148,152 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
     @Override
     public native long getSamples();
 
+    /**
+     * Get the average sampling rate while the profiler was active
+     * since the last reset of collected data
+     *
+     * @return Number of samples per second
+     */
+    @Override
+    public double getSamplesPerSecond() {
+        long[] metrics = getMetrics0();
+        long activeTime = metrics[METRIC_ACTIVE_TIME];
+        return activeTime == 0 ? 0 : metrics[METRIC_SAMPLES] * 1e9 / activeTime;
+    }
+
+    /**
+     * Get the number of samples whose stack trace could not be collected, by reason,
+     * e.g. "skipped" when too many signals arrived at the same time
+     *
+     * @return Map from the reason to the number of samples
+     */
+    @Override
+    public Map<String, Long> getDroppedSamples() {
+        long[] metrics = getMetrics0();
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (int i = 0; i < FAILURE_NAMES.length; i++) {
+            String name = FAILURE_NAMES[i];
+            long count = metrics[METRIC_FAILURES + i];
+            if (name != null && count > 0) {
+                Long prev = result.get(name);
+                result.put(name, prev == null ? count : prev + count);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the total time spent recording samples, mostly in signal handlers
+     *
+     * @return Time in nanoseconds
+     */
+    @Override
+    public long getSignalHandlerTime() {
+        return getMetrics0()[METRIC_HANDLER_TIME];
+    }
+
+    /**
+     * Get the distribution of time spent recording a single sample.
+     * Element N is the number of samples that took from 2^N to 2^(N+1) nanoseconds
+     *
+     * @return Histogram with logarithmic buckets
+     */
+    @Override
+    public long[] getSignalHandlerTimeHistogram() {
+        long[] metrics = getMetrics0();
+        return Arrays.copyOfRange(metrics, METRIC_HANDLER_HISTOGRAM, metrics.length);
+    }
+
+    /**
+     * Get the share of the CPU capacity available to the JVM that is spent recording samples,
+     * i.e. signal handler time relative to the active profiling time times the number of processors
+     *
+     * @return Overhead in percent
+     */
+    @Override
+    public double getOverheadPercent() {
+        long[] metrics = getMetrics0();
+        long capacity = metrics[METRIC_ACTIVE_TIME] * Runtime.getRuntime().availableProcessors();
+        return capacity == 0 ? 0 : metrics[METRIC_HANDLER_TIME] * 100.0 / capacity;
+    }
+
+    /**
+     * Get native memory occupied by the call trace storage:
+     * hash tables of counters and the stack traces themselves
+     *
+     * @return Memory in bytes
+     */
+    @Override
+    public long getCallTraceStorageMemory() {
+        long[] metrics = getMetrics0();
+        return metrics[METRIC_TABLE_MEMORY] + metrics[METRIC_TRACE_MEMORY];
+    }
+
+    /**
+     * Get the number of distinct call traces in the current hash table of the call trace storage
+     *
+     * @return Number of call traces
+     */
+    @Override
+    public long getCallTraceCount() {
+        return getMetrics0()[METRIC_TRACE_COUNT];
+    }
+
+    /**
+     * Get the load factor of the current call trace hash table.
+     * The table is expanded when the load exceeds 0.75, unless the memory limit is reached
+     *
+     * @return Ratio of occupied slots, from 0 to 1
+     */
+    @Override
+    public double getCallTraceTableLoad() {
+        long[] metrics = getMetrics0();
+        long capacity = metrics[METRIC_TABLE_CAPACITY];
+        return capacity == 0 ? 0 : (double) metrics[METRIC_TRACE_COUNT] / capacity;
+    }
+
+    /**
+     * Get the number of samples whose call traces did not fit in the storage
+     * since the profiling session was reset
+     *
+     * @return Number of samples
+     */
+    @Override
+    public long getCallTraceOverflows() {
+        return getMetrics0()[METRIC_TRACE_OVERFLOWS];
+    }
+
+    /**
+     * Get the number of times cold call traces were evicted from the storage
+     * to stay within the 'tracemem' limit since the profiler was loaded
+     *
+     * @return Number of evictions
+     */
+    @Override
+    public long getCallTraceEvictions() {
+        return getMetrics0()[METRIC_TRACE_EVICTIONS];
+    }
+
+    /**
+     * Get the number of JFR buffer flushes to disk since the profiler was loaded
+     *
+     * @return Number of flushes
+     */
+    @Override
+    public long getJfrFlushes() {
+        return getMetrics0()[METRIC_JFR_FLUSHES];
+    }
+
+    /**
+     * Get the number of bytes written to JFR recordings since the profiler was loaded
+     *
+     * @return Number of bytes
+     */
+    @Override
+    public long getJfrBytesWritten() {
+        return getMetrics0()[METRIC_JFR_BYTES];
+    }
+
     /**
      * Get profiler agent version, e.g. "1.0"
      *
@@ -118,7 +314,7 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
      *
      * @param command Profiling command
      * @return The command result
-     * @throws IllegalArgumentException If failed to parse the command
+     * @throws IllegalArgumentException If failed to parse the command, or binary output is requested without a file
      * @throws IOException If failed to create output file
      */
     @Override
@@ -129,6 +325,107 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
         return execute0(command);
     }
 
+    /**
+     * Execute an agent-compatible profiling command and write its result to the channel.
+     * The output is rendered in native memory and passed through a direct ByteBuffer,
+     * so it is never materialized as a String and is not limited by the maximum String length.
+     * The channel is written after the profiler lock is released, so a slow channel does not stall profiling.
+     *
+     * @param command Profiling command, 'file' option is ignored
+     * @param out Blocking channel to write the result to; it is not closed
+     * @throws IllegalArgumentException If failed to parse the command
+     * @throws IOException If failed to write to the channel, or the channel did not accept any bytes
+     */
+    public void execute(String command, WritableByteChannel out) throws IllegalArgumentException, IllegalStateException, IOException {
+        if (command == null || out == null) {
+            throw new NullPointerException();
+        }
+        execute1(command, out);
+    }
+
+    /**
+     * Execute an agent-compatible profiling command and write its result to the stream.
+     *
+     * @param command Profiling command, 'file' option is ignored
+     * @param out Stream to write the result to; it is not closed
+     * @throws IllegalArgumentException If failed to parse the command
+     * @throws IOException If failed to write to the stream
+     * @see #execute(String, WritableByteChannel)
+     */
+    public void execute(String command, OutputStream out) throws IllegalArgumentException, IllegalStateException, IOException {
+        execute(command, Channels.newChannel(out));
+        out.flush();
+    }
+
+    /**
+     * Execute an agent-compatible profiling command and put its result
+     * into the buffer starting at the buffer's current position.
+     *
+     * @param command Profiling command, 'file' option is ignored
+     * @param out Buffer to put the result into
+     * @return Number of bytes written
+     * @throws IllegalArgumentException If failed to parse the command
+     * @throws java.nio.BufferOverflowException If the result does not fit in the buffer
+     */
+    public int execute(String command, final ByteBuffer out) throws IllegalArgumentException, IllegalStateException, IOException {
+        int start = out.position();
+        execute(command, new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int size = src.remaining();
+                out.put(src);
+                return size;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        return out.position() - start;
+    }
+
+    /**
+     * Execute an agent-compatible profiling command on a background thread, e.g. "dump,file=profile.html".
+     * The calling thread does not wait for rendering and I/O. Commands submitted this way
+     * run one at a time in the order of submission. Dumping JFR while profiling
+     * pauses sampling only for a moment: the recording continues in the spare buffers
+     * while the current chunk is being written out.
+     *
+     * @param command Profiling command
+     * @return Future result of the command; {@link Future#get()} throws ExecutionException
+     *         with the cause of IllegalArgumentException, IllegalStateException or IOException on failure
+     */
+    public Future<String> executeAsync(final String command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        return dumpExecutor().submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return execute0(command);
+            }
+        });
+    }
+
+    private synchronized ExecutorService dumpExecutor() {
+        if (dumpExecutor == null) {
+            dumpExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Async-profiler Dump");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return dumpExecutor;
+    }
+
     /**
      * Dump profile in 'collapsed stacktraces' format
      *
@@ -174,6 +471,104 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
         }
     }
 
+    /**
+     * Dump profile in 'collapsed stacktraces' format to the stream
+     *
+     * @param counter Which counter to display in the output
+     * @param out Stream to write the profile to; it is not closed
+     * @throws IOException If failed to write to the stream
+     */
+    public void dumpCollapsed(Counter counter, OutputStream out) throws IOException {
+        execute("collapsed," + counter.name().toLowerCase(), out);
+    }
+
+    /**
+     * Dump collected stack traces to the stream
+     *
+     * @param maxTraces Maximum number of stack traces to dump. 0 means no limit
+     * @param out Stream to write the profile to; it is not closed
+     * @throws IOException If failed to write to the stream
+     */
+    public void dumpTraces(int maxTraces, OutputStream out) throws IOException {
+        execute(maxTraces == 0 ? "traces" : "traces=" + maxTraces, out);
+    }
+
+    /**
+     * Dump flat profile, i.e. the histogram of the hottest methods, to the stream
+     *
+     * @param maxMethods Maximum number of methods to dump. 0 means no limit
+     * @param out Stream to write the profile to; it is not closed
+     * @throws IOException If failed to write to the stream
+     */
+    public void dumpFlat(int maxMethods, OutputStream out) throws IOException {
+        execute(maxMethods == 0 ? "flat" : "flat=" + maxMethods, out);
+    }
+
+    /**
+     * Dump the call trace table in a compact binary form:
+     * every distinct frame name is written once and referred to by id.
+     * All numbers are unsigned LEB128 varints.
+     * <pre>
+     * 'F' length name                       defines the next frame id, counting from 0
+     * 'T' samples counter numFrames id...   call trace, the leaf frame first
+     * </pre>
+     *
+     * @param out Stream to write the profile to; it is not closed
+     * @throws IOException If failed to write to the stream
+     * @see #snapshot()
+     */
+    public void dumpBinary(OutputStream out) throws IOException {
+        execute("binary", out);
+    }
+
+    /**
+     * Take a structured snapshot of all collected call traces
+     * with interned frame names and per-trace counters
+     *
+     * @return Snapshot of the call trace table
+     */
+    public ProfileSnapshot snapshot() {
+        return snapshot("binary", new ProfileSnapshot.Decoder(), false);
+    }
+
+    /**
+     * Take a structured snapshot of call traces that are new or have changed
+     * since the previous delta snapshot. Counters are the increments since then.
+     * Frame names and known call traces are not passed again:
+     * frame ids and call trace ids remain valid until the profile is reset.
+     * Not available while the profiler records JFR output.
+     *
+     * @return Snapshot with only the changes of the call trace table
+     * @throws IllegalStateException If JFR output is active
+     */
+    public synchronized ProfileSnapshot snapshotDelta() {
+        if (deltaDecoder == null) {
+            deltaDecoder = new ProfileSnapshot.Decoder();
+        }
+        return snapshot("binary=delta", deltaDecoder, true);
+    }
+
+    private ProfileSnapshot snapshot(String command, ProfileSnapshot.Decoder decoder, boolean delta) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(65536);
+        try {
+            execute(command, out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return decoder.decode(out.toByteArray(), out.size(), delta);
+    }
+
+    /**
+     * Set the listener to receive files completed by the continuous profiling loop,
+     * e.g. started with "start,jfr,loop=10m,loopfiles=6,file=/tmp/profile-%t.jfr".
+     * The listener stays in effect across profiling sessions.
+     *
+     * @param listener Listener to be called for each completed file, or null to remove the listener
+     */
+    public void setLoopListener(LoopListener listener) {
+        setLoopListener0(listener);
+    }
+
     /**
      * Add the given thread to the set of profiled threads.
      * 'filter' option must be enabled to use this method.
@@ -194,6 +589,99 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
         filterThread(thread, false);
     }
 
+    /**
+     * Add the given threads to the set of profiled threads.
+     * Unlike calling {@link #addThread(Thread)} in a loop, this takes a single native call.
+     * 'filter' option must be enabled to use this method.
+     *
+     * @param threads Threads to include in profiling
+     */
+    public void addThreads(Thread[] threads) {
+        filterThreads0(threads, true);
+    }
+
+    /**
+     * Remove the given threads from the set of profiled threads.
+     * 'filter' option must be enabled to use this method.
+     *
+     * @param threads Threads to exclude from profiling
+     */
+    public void removeThreads(Thread[] threads) {
+        filterThreads0(threads, false);
+    }
+
+    /**
+     * Profile all threads whose names match the given pattern: both running threads
+     * and threads started later. The pattern is either an exact name,
+     * or a name with a '*' wildcard at the beginning and/or at the end, e.g. "grpc-worker-*".
+     * Threads are matched by the name they have when started, or when the rule is added.
+     * Rules survive profiler restarts until {@link #clearThreadRules()}.
+     * 'filter' option must be enabled to use this method.
+     *
+     * @param pattern Thread name pattern
+     */
+    public void addThreadPattern(String pattern) {
+        addThreadPattern0(pattern);
+    }
+
+    /**
+     * Profile all threads of the given group and its subgroups:
+     * both running threads and threads started later.
+     * Rules survive profiler restarts until {@link #clearThreadRules()}.
+     * 'filter' option must be enabled to use this method.
+     *
+     * @param group Thread group
+     */
+    public void addThreadGroup(ThreadGroup group) {
+        addThreadGroup0(group);
+    }
+
+    /**
+     * Remove all thread name patterns and thread groups.
+     * Threads that have already been added to the set of profiled threads remain there.
+     */
+    public void clearThreadRules() {
+        clearThreadRules0();
+    }
+
+    /**
+     * Set the context of the current thread. Every subsequent sample or event
+     * of this thread carries the context until it is changed or cleared.
+     * In JFR output, spanId and tag are stored with each event;
+     * with 'tags' option, other output formats have a separate stack root for every non-zero tag.
+     * This method is cheap enough to be called at every request boundary.
+     *
+     * @param spanId Application-defined ID, e.g. of a tracing span, or 0
+     * @param tag    Application-defined attribution key, e.g. of an endpoint or a tenant, or 0
+     */
+    public void setContext(long spanId, long tag) {
+        setContext0(spanId, tag);
+    }
+
+    /**
+     * Clear the context of the current thread
+     */
+    public void clearContext() {
+        setContext0(0, 0);
+    }
+
+    /**
+     * Open a named profiling region on the current thread.
+     * Use with try-with-resources, see {@link ProfilingScope}.
+     * Up to 4096 distinct names are supported; scopes with further names have no effect.
+     *
+     * @param name Scope name to appear in the profile as [scope=NAME] frame
+     * @return Scope to be closed when leaving the region
+     */
+    public ProfilingScope scope(String name) {
+        Integer id = scopeIds.get(name);
+        if (id == null) {
+            id = registerScope0(name);
+            scopeIds.put(name, id);
+        }
+        return new ProfilingScope(contextBuffer.get(), id);
+    }
+
     private void filterThread(Thread thread, boolean enable) {
         if (thread == null || thread == Thread.currentThread()) {
             filterThread0(null, enable);
@@ -211,5 +699,15 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
     private native void start0(String event, long interval, boolean reset) throws IllegalStateException;
     private native void stop0() throws IllegalStateException;
     private native String execute0(String command) throws IllegalArgumentException, IllegalStateException, IOException;
+    private native void execute1(String command, WritableByteChannel out) throws IllegalArgumentException, IllegalStateException, IOException;
+    private native void setLoopListener0(Object listener);
     private native void filterThread0(Thread thread, boolean enable);
+    private native void filterThreads0(Thread[] threads, boolean enable);
+    private native void addThreadPattern0(String pattern);
+    private native void addThreadGroup0(ThreadGroup group);
+    private native void clearThreadRules0();
+    private native void setContext0(long spanId, long tag);
+    private native ByteBuffer getContextBuffer0();
+    private native int registerScope0(String name);
+    private native long[] getMetrics0();
 }
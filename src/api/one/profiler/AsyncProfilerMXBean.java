@@ -16,6 +16,8 @@
 
 package one.profiler;
 
+import java.util.Map;
+
 /**
  * AsyncProfiler interface for JMX server.
  * How to register AsyncProfiler MBean:
@@ -35,6 +37,19 @@ public interface AsyncProfilerMXBean {
     long getSamples();
     String getVersion();
 
+    double getSamplesPerSecond();
+    Map<String, Long> getDroppedSamples();
+    long getSignalHandlerTime();
+    long[] getSignalHandlerTimeHistogram();
+    double getOverheadPercent();
+    long getCallTraceStorageMemory();
+    long getCallTraceCount();
+    double getCallTraceTableLoad();
+    long getCallTraceOverflows();
+    long getCallTraceEvictions();
+    long getJfrFlushes();
+    long getJfrBytesWritten();
+
     String execute(String command) throws IllegalArgumentException, IllegalStateException, java.io.IOException;
 
     String dumpCollapsed(Counter counter);
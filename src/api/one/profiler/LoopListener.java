@@ -0,0 +1,34 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.profiler;
+
+/**
+ * Receives files completed by the continuous profiling loop,
+ * see 'loop' option and {@link AsyncProfiler#setLoopListener(LoopListener)}.
+ */
+public interface LoopListener {
+
+    /**
+     * Called on the "Async-profiler Loop" thread when the profiler has switched
+     * to the next file of the loop, or has stopped. Files are reported in the order of completion.
+     * A completed file may be deleted later according to 'loopfiles' and 'loopsize' limits,
+     * so the listener should copy or move it promptly.
+     *
+     * @param file Path of the completed JFR file
+     */
+    void fileCompleted(String file);
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.profiler;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Structured view of the call trace table: a table of interned frame names
+ * and a list of call traces, each with its frames and counters.
+ * Obtained with {@link AsyncProfiler#snapshot()} or {@link AsyncProfiler#snapshotDelta()}.
+ */
+public class ProfileSnapshot {
+    private final boolean delta;
+    private final String[] frames;
+    private final int frameCount;
+    private final int[] traceIds;
+    private final int[][] traceFrames;
+    private final long[] samples;
+    private final long[] counters;
+    private final int traceCount;
+
+    ProfileSnapshot(boolean delta, String[] frames, int frameCount, int[] traceIds, int[][] traceFrames,
+                    long[] samples, long[] counters, int traceCount) {
+        this.delta = delta;
+        this.frames = frames;
+        this.frameCount = frameCount;
+        this.traceIds = traceIds;
+        this.traceFrames = traceFrames;
+        this.samples = samples;
+        this.counters = counters;
+        this.traceCount = traceCount;
+    }
+
+    /**
+     * @return true if counters are increments since the previous delta snapshot,
+     *         and only new or changed call traces are included
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+
+    /**
+     * @return Number of known frames. In delta mode, this includes frames of earlier snapshots
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @param frameId Frame id from {@link #getTraceFrames(int)}
+     * @return Frame name
+     */
+    public String getFrame(int frameId) {
+        if (frameId >= frameCount) {
+            throw new IndexOutOfBoundsException(String.valueOf(frameId));
+        }
+        return frames[frameId];
+    }
+
+    /**
+     * @return Number of call traces in this snapshot
+     */
+    public int getTraceCount() {
+        return traceCount;
+    }
+
+    /**
+     * @param index Call trace index, from 0 to {@link #getTraceCount()} - 1
+     * @return Call trace id that stays the same across delta snapshots until the profile is reset
+     */
+    public int getTraceId(int index) {
+        checkIndex(index);
+        return traceIds[index];
+    }
+
+    /**
+     * @param index Call trace index, from 0 to {@link #getTraceCount()} - 1
+     * @return Frame ids of the call trace, the leaf frame first. The array must not be modified
+     */
+    public int[] getTraceFrames(int index) {
+        checkIndex(index);
+        return traceFrames[index];
+    }
+
+    /**
+     * @param index Call trace index, from 0 to {@link #getTraceCount()} - 1
+     * @return Number of samples of the call trace
+     */
+    public long getSamples(int index) {
+        checkIndex(index);
+        return samples[index];
+    }
+
+    /**
+     * @param index Call trace index, from 0 to {@link #getTraceCount()} - 1
+     * @return Total value of the call trace (time, bytes, etc.)
+     */
+    public long getCounter(int index) {
+        checkIndex(index);
+        return counters[index];
+    }
+
+    private void checkIndex(int index) {
+        if (index >= traceCount) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+    }
+
+    /**
+     * Parses the binary call trace table produced by the 'binary' output format.
+     * Delta dumps refer to frames and call traces of earlier dumps,
+     * so the same Decoder must be used for all of them.
+     */
+    static class Decoder {
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        // Frame names and call traces are only appended, so that arrays can be shared with earlier snapshots
+        private String[] frames = new String[256];
+        private int frameCount;
+        private int[][] traces = new int[256][];
+        private int traceCount;
+
+        private byte[] data;
+        private int pos;
+
+        ProfileSnapshot decode(byte[] data, int length, boolean delta) {
+            this.data = data;
+            this.pos = 0;
+
+            int[] ids = new int[64];
+            int[][] traceFrames = new int[64][];
+            long[] samples = new long[64];
+            long[] counters = new long[64];
+            int count = 0;
+
+            while (pos < length) {
+                byte tag = data[pos++];
+                int id;
+                if (tag == 'F') {
+                    int len = (int) readVarint();
+                    if (frameCount == frames.length) {
+                        frames = Arrays.copyOf(frames, frameCount * 2);
+                    }
+                    frames[frameCount++] = new String(data, pos, len, UTF8);
+                    pos += len;
+                    continue;
+                } else if (tag == 'R') {
+                    frames = new String[frames.length];
+                    frameCount = 0;
+                    traces = new int[traces.length][];
+                    traceCount = 0;
+                    continue;
+                } else if (tag == 'T') {
+                    id = traceCount;
+                } else if (tag == 'U') {
+                    id = (int) readVarint();
+                } else {
+                    throw new IllegalStateException("Malformed binary profile: unknown tag " + tag);
+                }
+
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                    traceFrames = Arrays.copyOf(traceFrames, count * 2);
+                    samples = Arrays.copyOf(samples, count * 2);
+                    counters = Arrays.copyOf(counters, count * 2);
+                }
+                ids[count] = id;
+                samples[count] = readVarint();
+                counters[count] = readVarint();
+
+                if (tag == 'T') {
+                    int[] frameIds = new int[(int) readVarint()];
+                    for (int i = 0; i < frameIds.length; i++) {
+                        frameIds[i] = (int) readVarint();
+                    }
+                    if (traceCount == traces.length) {
+                        traces = Arrays.copyOf(traces, traceCount * 2);
+                    }
+                    traces[traceCount++] = frameIds;
+                }
+                traceFrames[count++] = traces[id];
+            }
+
+            this.data = null;
+            return new ProfileSnapshot(delta, frames, frameCount, ids, traceFrames, samples, counters, count);
+        }
+
+        private long readVarint() {
+            long result = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = data[pos++];
+                result |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+        }
+    }
+}
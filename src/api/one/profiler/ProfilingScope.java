@@ -0,0 +1,63 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.profiler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Named region of code, obtained with {@link AsyncProfiler#scope(String)}
+ * and meant to be used in try-with-resources:
+ * <pre>
+ * try (ProfilingScope scope = profiler.scope("checkout")) {
+ *     ...
+ * }
+ * </pre>
+ * Samples of the current thread taken inside the region get a [scope=NAME] frame.
+ * When the profiler is started with 'scoped' option, samples outside any scope are not collected.
+ * <p>
+ * Opening and closing a scope do not call the native library:
+ * the scope ID is written directly into the context of the current thread,
+ * which the profiler reads when taking a sample. Scopes may be nested,
+ * and must be closed by the same thread in the reverse order.
+ */
+public final class ProfilingScope implements AutoCloseable {
+    // Offset of the scope field in struct Context, see context.h
+    private static final int SCOPE_OFFSET = 16;
+
+    private final ByteBuffer context;
+    private final long previous;
+
+    ProfilingScope(ByteBuffer context, int id) {
+        this.context = context;
+        if (context != null) {
+            this.previous = context.getLong(SCOPE_OFFSET);
+            context.putLong(SCOPE_OFFSET, id);
+        } else {
+            this.previous = 0;
+        }
+    }
+
+    /**
+     * Leave the region and restore the enclosing scope, if any
+     */
+    @Override
+    public void close() {
+        if (context != null) {
+            context.putLong(SCOPE_OFFSET, previous);
+        }
+    }
+}
@@ -39,6 +39,16 @@ static inline void storeRelease(u64& var, u64 value) {
     return __atomic_store_n(&var, value, __ATOMIC_RELEASE);
 }
 
+template<typename T>
+static inline T* loadAcquire(T*& var) {
+    return __atomic_load_n(&var, __ATOMIC_ACQUIRE);
+}
+
+template<typename T>
+static inline void storeRelease(T*& var, T* value) {
+    return __atomic_store_n(&var, value, __ATOMIC_RELEASE);
+}
+
 
 #if defined(__x86_64__) || defined(__i386__)
 
@@ -65,6 +65,7 @@ static const Multiplier UNIVERSAL[] = {{'n', 1}, {'u', 1000}, {'m', 1000000}, {'
 //     collapsed        - dump collapsed stacks (the format used by FlameGraph script)
 //     flamegraph       - produce Flame Graph in HTML format
 //     tree             - produce call tree in HTML format
+//     binary[=delta]   - dump call trace table in a compact binary form (see Profiler::dumpBinary)
 //     jfr              - dump events in Java Flight Recorder format
 //     jfrsync[=CONFIG] - start Java Flight Recording with the given config along with the profiler 
 //     traces[=N]       - dump top N call traces
@@ -73,13 +74,20 @@ static const Multiplier UNIVERSAL[] = {{'n', 1}, {'u', 1000}, {'m', 1000000}, {'
 //     total            - count the total value (time, bytes, etc.) instead of samples
 //     chunksize=N      - approximate size of JFR chunk in bytes (default: 100 MB)
 //     chunktime=N      - duration of JFR chunk in seconds (default: 1 hour)
+//     loop=TIME        - continuous profiling: switch JFR output to a new file every TIME seconds
+//     loopfiles=N      - in loop mode, keep only N last completed files
+//     loopsize=SIZE    - in loop mode, keep only as many last completed files as fit in SIZE bytes
+//     tracemem=SIZE    - limit memory used by call traces; with JFR output, evict cold traces
 //     interval=N       - sampling interval in ns (default: 10'000'000, i.e. 10 ms)
+//     overhead=PCT     - adapt the interval to keep signal handler time within PCT% of CPU time
 //     jstackdepth=N    - maximum Java stack depth (default: 2048)
 //     safemode=BITS    - disable stack recovery techniques (default: 0, i.e. everything enabled)
 //     file=FILENAME    - output file name for dumping
 //     log=FILENAME     - log warnings and errors to the given dedicated stream
 //     filter=FILTER    - thread filter
 //     threads          - profile different threads separately
+//     tags             - profile different thread context tags separately
+//     scoped           - collect samples only inside ProfilingScope regions
 //     sched            - group threads by scheduling policy
 //     cstack=MODE      - how to collect C stack frames in addition to Java stack
 //                        MODE is 'fp' (Frame Pointer), 'lbr' (Last Branch Record) or 'no'
@@ -112,6 +120,7 @@ Error Arguments::parse(const char* args) {
     if (_buf == NULL) {
         return Error("Not enough memory to parse arguments");
     }
+    _buf_size = len + EXTRA_BUF_SIZE;
     strcpy(_buf, args);
 
     const char* msg = NULL;    
@@ -156,6 +165,10 @@ Error Arguments::parse(const char* args) {
             CASE("tree")
                 _output = OUTPUT_TREE;
 
+            CASE("binary")
+                _output = OUTPUT_BINARY;
+                _delta = value != NULL && strcmp(value, "delta") == 0;
+
             CASE("jfr")
                 _output = OUTPUT_JFR;
                 if (value != NULL) {
@@ -190,6 +203,26 @@ Error Arguments::parse(const char* args) {
                 if (value == NULL || (_chunk_time = parseUnits(value, SECONDS)) < 0) {
                     msg = "Invalid chunktime";
                 }
+
+            CASE("loop")
+                if (value == NULL || (_loop = parseUnits(value, SECONDS)) <= 0) {
+                    msg = "Invalid loop duration";
+                }
+
+            CASE("loopfiles")
+                if (value == NULL || (_loop_files = atoi(value)) <= 0) {
+                    msg = "loopfiles must be > 0";
+                }
+
+            CASE("loopsize")
+                if (value == NULL || (_loop_size = parseUnits(value, BYTES)) <= 0) {
+                    msg = "Invalid loopsize";
+                }
+
+            CASE("tracemem")
+                if (value == NULL || (_trace_mem = parseUnits(value, BYTES)) <= 0) {
+                    msg = "Invalid tracemem";
+                }
             
             // Basic options
             CASE("event")
@@ -222,6 +255,11 @@ Error Arguments::parse(const char* args) {
                     msg = "Invalid interval";
                 }
 
+            CASE("overhead")
+                if (value == NULL || (_overhead = atof(value)) <= 0) {
+                    msg = "overhead must be > 0";
+                }
+
             CASE("jstackdepth")
                 if (value == NULL || (_jstackdepth = atoi(value)) <= 0) {
                     msg = "jstackdepth must be > 0";
@@ -256,6 +294,12 @@ Error Arguments::parse(const char* args) {
             CASE("threads")
                 _threads = true;
 
+            CASE("tags")
+                _tags = true;
+
+            CASE("scoped")
+                _scoped = true;
+
             CASE("sched")
                 _sched = true;
 
@@ -320,6 +364,7 @@ Error Arguments::parse(const char* args) {
     }
 
     if (_file != NULL && strchr(_file, '%') != NULL) {
+        _file_pattern = _file;
         _file = expandFilePattern(_buf + len + 1, EXTRA_BUF_SIZE - 1, _file);
     }
 
@@ -336,6 +381,14 @@ Error Arguments::parse(const char* args) {
         _action = ACTION_DUMP;
     }
 
+    if (_loop > 0 && (_action == ACTION_START || _action == ACTION_RESUME)) {
+        if (_output != OUTPUT_JFR || _jfr_sync != NULL) {
+            return Error("loop is supported only with jfr output");
+        } else if (_file_pattern == NULL || strstr(_file_pattern, "%t") == NULL) {
+            return Error("loop requires %t in the file name");
+        }
+    }
+
     return Error::OK;
 }
 
@@ -432,3 +485,32 @@ void Arguments::save(Arguments& other) {
     *this = other;
     other._shared = true;
 }
+
+// Unlike save(), makes a copy that does not depend on the lifetime of the other Arguments:
+// all string options pointing into the other buffer are moved to the own buffer
+bool Arguments::copy(const Arguments& other) {
+    if (!_shared) free(_buf);
+    *this = other;
+    _shared = false;
+
+    if (other._buf == NULL) {
+        return true;
+    }
+
+    _buf = (char*)malloc(_buf_size);
+    if (_buf == NULL) {
+        _shared = true;
+        return false;
+    }
+    memcpy(_buf, other._buf, _buf_size);
+
+    const char** options[] = {&_event, &_file, &_file_pattern, &_log, &_filter, &_fdtransfer_path,
+                              &_jfr_sync, &_begin, &_end, &_title};
+    for (size_t i = 0; i < sizeof(options) / sizeof(options[0]); i++) {
+        const char* value = *options[i];
+        if (value >= other._buf && value < other._buf + _buf_size) {
+            *options[i] = _buf + (value - other._buf);
+        }
+    }
+    return true;
+}
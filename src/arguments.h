@@ -75,7 +75,8 @@ enum Output {
     OUTPUT_COLLAPSED,
     OUTPUT_FLAMEGRAPH,
     OUTPUT_TREE,
-    OUTPUT_JFR
+    OUTPUT_JFR,
+    OUTPUT_BINARY
 };
 
 enum JfrOption {
@@ -117,12 +118,12 @@ class Error {
 class Arguments {
   private:
     char* _buf;
+    size_t _buf_size;
     bool _shared;
 
     void appendToEmbeddedList(int& list, char* value);
 
     static long long hash(const char* arg);
-    static const char* expandFilePattern(char* dest, size_t max_size, const char* pattern);
     static Output detectOutputFormat(const char* file);
     static long parseUnits(const char* str, const Multiplier* multipliers);
 
@@ -132,16 +133,20 @@ class Arguments {
     Ring _ring;
     const char* _event;
     long _interval;
+    double _overhead;
     long _alloc;
     long _lock;
     int  _jstackdepth;
     int _safe_mode;
     const char* _file;
+    const char* _file_pattern;
     const char* _log;
     const char* _filter;
     int _include;
     int _exclude;
     bool _threads;
+    bool _tags;
+    bool _scoped;
     bool _sched;
     bool _fdtransfer;
     const char* _fdtransfer_path;
@@ -150,10 +155,15 @@ class Arguments {
     Output _output;
     long _chunk_size;
     long _chunk_time;
+    long _loop;
+    int _loop_files;
+    long _loop_size;
+    long _trace_mem;
     const char* _jfr_sync;
     int _jfr_options;
     int _dump_traces;
     int _dump_flat;
+    bool _delta;
     const char* _begin;
     const char* _end;
     // FlameGraph parameters
@@ -163,22 +173,27 @@ class Arguments {
 
     Arguments() :
         _buf(NULL),
+        _buf_size(0),
         _shared(false),
         _action(ACTION_NONE),
         _counter(COUNTER_SAMPLES),
         _ring(RING_ANY),
         _event(NULL),
         _interval(0),
+        _overhead(0),
         _alloc(0),
         _lock(0),
         _jstackdepth(DEFAULT_JSTACKDEPTH),
         _safe_mode(0),
         _file(NULL),
+        _file_pattern(NULL),
         _log(NULL),
         _filter(NULL),
         _include(0),
         _exclude(0),
         _threads(false),
+        _tags(false),
+        _scoped(false),
         _sched(false),
         _fdtransfer(false),
         _fdtransfer_path(NULL),
@@ -187,10 +202,15 @@ class Arguments {
         _output(OUTPUT_NONE),
         _chunk_size(100 * 1024 * 1024),
         _chunk_time(3600),
+        _loop(0),
+        _loop_files(0),
+        _loop_size(0),
+        _trace_mem(0),
         _jfr_sync(NULL),
         _jfr_options(0),
         _dump_traces(0),
         _dump_flat(0),
+        _delta(false),
         _begin(NULL),
         _end(NULL),
         _title(NULL),
@@ -201,6 +221,7 @@ class Arguments {
     ~Arguments();
 
     void save(Arguments& other);
+    bool copy(const Arguments& other);
 
     Error parse(const char* args);
 
@@ -213,6 +234,8 @@ class Arguments {
         return (_jfr_options & option) != 0;
     }
 
+    static const char* expandFilePattern(char* dest, size_t max_size, const char* pattern);
+
     friend class FrameName;
     friend class Recording;
 };
@@ -21,6 +21,8 @@
 
 static const u32 INITIAL_CAPACITY = 65536;
 static const u32 CALL_TRACE_CHUNK = 8 * 1024 * 1024;
+// Memory of traces is accounted in whole chunks, so smaller limits would not leave room for any traces
+static const size_t MIN_MEMORY_LIMIT = 4 * CALL_TRACE_CHUNK;
 static const u32 OVERFLOW_TRACE_ID = 0x7fffffff;
 
 
@@ -33,12 +35,12 @@ class LongHashTable {
     volatile u32 _size;
     u32 _padding2[15];
 
+  public:
     static size_t getSize(u32 capacity) {
         size_t size = sizeof(LongHashTable) + (sizeof(u64) + sizeof(CallTraceSample)) * capacity;
         return (size + OS::page_mask) & ~OS::page_mask;
     }
 
-  public:
     static LongHashTable* allocate(LongHashTable* prev, u32 capacity) {
         LongHashTable* table = (LongHashTable*)OS::safeAlloc(getSize(capacity));
         if (table != NULL) {
@@ -63,6 +65,10 @@ class LongHashTable {
         return _capacity;
     }
 
+    size_t usedMemory() {
+        return getSize(_capacity);
+    }
+
     u32 size() {
         return _size;
     }
@@ -88,26 +94,148 @@ class LongHashTable {
 
 CallTrace CallTraceStorage::_overflow_trace = {1, {BCI_ERROR, (jmethodID)"storage_overflow"}};
 
-CallTraceStorage::CallTraceStorage() : _allocator(CALL_TRACE_CHUNK) {
+CallTraceStorage::CallTraceStorage() {
+    _allocator = new LinearAllocator(CALL_TRACE_CHUNK);
     _current_table = LongHashTable::allocate(NULL, INITIAL_CAPACITY);
+    _next_allocator = NULL;
+    _next_table = NULL;
+    _retired_allocator = NULL;
+    _retired_table = NULL;
+    _table_memory = _current_table->usedMemory();
+    _memory_limit = 0;
     _overflow = 0;
+    _evictions = 0;
 }
 
 CallTraceStorage::~CallTraceStorage() {
+    releaseNext();
+    releaseRetired();
     while (_current_table != NULL) {
         _current_table = _current_table->destroy();
     }
+    delete _allocator;
 }
 
 void CallTraceStorage::clear() {
+    releaseNext();
+    releaseRetired();
     while (_current_table->prev() != NULL) {
         _current_table = _current_table->destroy();
     }
     _current_table->clear();
-    _allocator.clear();
+    _table_memory = _current_table->usedMemory();
+    _allocator->clear();
     _overflow = 0;
 }
 
+void CallTraceStorage::setMemoryLimit(size_t limit) {
+    _memory_limit = limit == 0 || limit >= MIN_MEMORY_LIMIT ? limit : MIN_MEMORY_LIMIT;
+}
+
+bool CallTraceStorage::exceedsLimit(size_t extra) {
+    return _memory_limit != 0 && tableMemory() + traceMemory() + extra > _memory_limit;
+}
+
+// Evict when a half of the memory limit is used, so that the new generation,
+// which takes a part of the old one, fits in the limit alongside it
+bool CallTraceStorage::needsEviction() {
+    return _memory_limit != 0 && tableMemory() + traceMemory() >= _memory_limit / 2;
+}
+
+// Copies traces sampled since the last collectTraces() to the next generation.
+// Concurrent put() may add new traces meanwhile; they remain in the retired generation
+void CallTraceStorage::prepareEviction() {
+    releaseNext();
+
+    u32 hot = 0;
+    for (LongHashTable* table = _current_table; table != NULL; table = table->prev()) {
+        u64* keys = table->keys();
+        CallTraceSample* values = table->values();
+        for (u32 slot = 0; slot < table->capacity(); slot++) {
+            if (keys[slot] != 0 && loadAcquire(values[slot].trace) != NULL && loadAcquire(values[slot].samples) != 0) {
+                hot++;
+            }
+        }
+    }
+
+    u32 capacity = INITIAL_CAPACITY;
+    while (hot >= capacity / 2) {
+        capacity *= 2;
+    }
+
+    _next_table = LongHashTable::allocate(NULL, capacity);
+    if (_next_table == NULL) {
+        return;
+    }
+    _next_allocator = new LinearAllocator(CALL_TRACE_CHUNK);
+
+    u64* next_keys = _next_table->keys();
+    CallTraceSample* next_values = _next_table->values();
+
+    for (LongHashTable* table = _current_table; table != NULL; table = table->prev()) {
+        u64* keys = table->keys();
+        CallTraceSample* values = table->values();
+        for (u32 slot = 0; slot < table->capacity(); slot++) {
+            u64 hash = keys[slot];
+            CallTrace* trace = loadAcquire(values[slot].trace);
+            if (hash == 0 || trace == NULL || loadAcquire(values[slot].samples) == 0) {
+                continue;
+            }
+
+            // The same trace may be found in several tables after migration
+            u32 next_slot = hash & (capacity - 1);
+            for (u32 step = 1; next_keys[next_slot] != 0 && next_keys[next_slot] != hash; step++) {
+                next_slot = (next_slot + step) & (capacity - 1);
+            }
+            if (next_keys[next_slot] == hash) {
+                continue;
+            }
+
+            CallTrace* copy = storeCallTrace(_next_allocator, trace->num_frames, trace->frames);
+            if (copy == NULL) {
+                return;
+            }
+            next_keys[next_slot] = hash;
+            next_values[next_slot].trace = copy;
+            next_values[next_slot].counter = values[slot].counter;
+            _next_table->incSize();
+        }
+    }
+}
+
+// Must be called when no put() is in progress
+void CallTraceStorage::evict() {
+    if (_next_table == NULL) {
+        return;
+    }
+
+    _retired_table = _current_table;
+    _retired_allocator = _allocator;
+    _current_table = _next_table;
+    _table_memory = _next_table->usedMemory();
+    _allocator = _next_allocator;
+    _next_table = NULL;
+    _next_allocator = NULL;
+    _evictions++;
+}
+
+void CallTraceStorage::releaseNext() {
+    if (_next_table != NULL) {
+        _next_table->destroy();
+        _next_table = NULL;
+    }
+    delete _next_allocator;
+    _next_allocator = NULL;
+}
+
+void CallTraceStorage::releaseRetired() {
+    while (_retired_table != NULL) {
+        _retired_table = _retired_table->destroy();
+    }
+    delete _retired_allocator;
+    _retired_allocator = NULL;
+}
+
 void CallTraceStorage::collectTraces(std::map<u32, CallTrace*>& map) {
     for (LongHashTable* table = _current_table; table != NULL; table = table->prev()) {
         u64* keys = table->keys();
@@ -115,7 +243,7 @@ void CallTraceStorage::collectTraces(std::map<u32, CallTrace*>& map) {
         u32 capacity = table->capacity();
 
         for (u32 slot = 0; slot < capacity; slot++) {
-            if (keys[slot] != 0 && loadAcquire(values[slot].samples) != 0) {
+            if (keys[slot] != 0 && values[slot].trace != NULL && loadAcquire(values[slot].samples) != 0) {
                 // Reset samples to avoid duplication of call traces between JFR chunks
                 values[slot].samples = 0;
                 map[capacity - (INITIAL_CAPACITY - 1) + slot] = values[slot].trace;
@@ -156,6 +284,30 @@ void CallTraceStorage::collectSamples(std::map<u64, CallTraceSample>& map) {
     }
 }
 
+size_t CallTraceStorage::tableMemory() {
+    return _table_memory;
+}
+
+size_t CallTraceStorage::traceMemory() {
+    return _allocator->usedMemory();
+}
+
+u32 CallTraceStorage::size() {
+    return _current_table->size();
+}
+
+u32 CallTraceStorage::capacity() {
+    return _current_table->capacity();
+}
+
+u64 CallTraceStorage::overflows() {
+    return _overflow;
+}
+
+u64 CallTraceStorage::evictions() {
+    return _evictions;
+}
+
 // Adaptation of MurmurHash64A by Austin Appleby
 u64 CallTraceStorage::calcHash(int num_frames, ASGCT_CallFrame* frames) {
     const u64 M = 0xc6a4a7935bd1e995ULL;
@@ -188,9 +340,9 @@ u64 CallTraceStorage::calcHash(int num_frames, ASGCT_CallFrame* frames) {
     return h;
 }
 
-CallTrace* CallTraceStorage::storeCallTrace(int num_frames, ASGCT_CallFrame* frames) {
+CallTrace* CallTraceStorage::storeCallTrace(LinearAllocator* allocator, int num_frames, ASGCT_CallFrame* frames) {
     const size_t header_size = sizeof(CallTrace) - sizeof(ASGCT_CallFrame);
-    CallTrace* buf = (CallTrace*)_allocator.alloc(header_size + num_frames * sizeof(ASGCT_CallFrame));
+    CallTrace* buf = (CallTrace*)allocator->alloc(header_size + num_frames * sizeof(ASGCT_CallFrame));
     if (buf != NULL) {
         buf->num_frames = num_frames;
         // Do not use memcpy inside signal handler
@@ -217,7 +369,7 @@ CallTrace* CallTraceStorage::findCallTrace(LongHashTable* table, u64 hash) {
         slot = (slot + step) & (capacity - 1);
     }
 
-    return table->values()[slot].trace;
+    return loadAcquire(table->values()[slot].trace);
 }
 
 u32 CallTraceStorage::put(int num_frames, ASGCT_CallFrame* frames, u64 counter) {
@@ -231,24 +383,29 @@ u32 CallTraceStorage::put(int num_frames, ASGCT_CallFrame* frames, u64 counter)
 
     while (keys[slot] != hash) {
         if (keys[slot] == 0) {
+            if (exceedsLimit(0) || (table->size() >= capacity * 3 / 4 && exceedsLimit(LongHashTable::getSize(capacity * 2)))) {
+                // New traces do not fit in the memory limit, or the table is full and cannot grow
+                atomicInc(_overflow);
+                return OVERFLOW_TRACE_ID;
+            }
             if (!__sync_bool_compare_and_swap(&keys[slot], 0, hash)) {
                 continue;
             }
 
             // Increment the table size, and if the load factor exceeds 0.75, reserve a new table
-            if (table->incSize() == capacity * 3 / 4) {
+            if (table->incSize() == capacity * 3 / 4 && !exceedsLimit(LongHashTable::getSize(capacity * 2))) {
                 LongHashTable* new_table = LongHashTable::allocate(table, capacity * 2);
-                if (new_table != NULL) {
-                    __sync_bool_compare_and_swap(&_current_table, table, new_table);
+                if (new_table != NULL && __sync_bool_compare_and_swap(&_current_table, table, new_table)) {
+                    __sync_fetch_and_add(&_table_memory, new_table->usedMemory());
                 }
             }
 
             // Migrate from a previous table to save space
             CallTrace* trace = table->prev() == NULL ? NULL : findCallTrace(table->prev(), hash);
             if (trace == NULL) {
-                trace = storeCallTrace(num_frames, frames);
+                trace = storeCallTrace(_allocator, num_frames, frames);
             }
-            table->values()[slot].trace = trace;
+            storeRelease(table->values()[slot].trace, trace);
             break;
         }
 
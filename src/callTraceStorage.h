@@ -48,28 +48,56 @@ struct CallTraceSample {
     }
 };
 
+// With a memory limit, new call traces beyond the limit are counted as storage_overflow.
+// Eviction replaces the whole storage with a new generation holding only recently sampled traces:
+// prepareEviction() builds it concurrently with put(), evict() switches generations
+// when no put() is in progress, and releaseRetired() frees the old generation
+// after the traces collected from it have been written out
 class CallTraceStorage {
   private:
     static CallTrace _overflow_trace;
 
-    LinearAllocator _allocator;
+    LinearAllocator* _allocator;
     LongHashTable* _current_table;
+    LinearAllocator* _next_allocator;
+    LongHashTable* _next_table;
+    LinearAllocator* _retired_allocator;
+    LongHashTable* _retired_table;
+    volatile size_t _table_memory;
+    size_t _memory_limit;
     u64 _overflow;
+    u64 _evictions;
 
     u64 calcHash(int num_frames, ASGCT_CallFrame* frames);
-    CallTrace* storeCallTrace(int num_frames, ASGCT_CallFrame* frames);
+    CallTrace* storeCallTrace(LinearAllocator* allocator, int num_frames, ASGCT_CallFrame* frames);
     CallTrace* findCallTrace(LongHashTable* table, u64 hash);
+    bool exceedsLimit(size_t extra);
+    void releaseNext();
 
   public:
     CallTraceStorage();
     ~CallTraceStorage();
 
     void clear();
+    void setMemoryLimit(size_t limit);
+
+    bool needsEviction();
+    void prepareEviction();
+    void evict();
+    void releaseRetired();
+
     void collectTraces(std::map<u32, CallTrace*>& map);
     void collectSamples(std::vector<CallTraceSample*>& samples);
     void collectSamples(std::map<u64, CallTraceSample>& map);
 
     u32 put(int num_frames, ASGCT_CallFrame* frames, u64 counter);
+
+    size_t tableMemory();
+    size_t traceMemory();
+    u32 size();
+    u32 capacity();
+    u64 overflows();
+    u64 evictions();
 };
 
 #endif // _CALLTRACESTORAGE
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include "context.h"
+#include "os.h"
+
+
+ContextStorage::ContextStorage() : _scope_count(0) {
+    memset(_pages, 0, sizeof(_pages));
+}
+
+ContextStorage::~ContextStorage() {
+    for (int i = 0; i < MAX_CONTEXT_PAGES; i++) {
+        if (_pages[i] != NULL) {
+            OS::safeFree(_pages[i], CONTEXT_PAGE_SIZE);
+        }
+    }
+}
+
+Context* ContextStorage::slot(int thread_id) {
+    u32 page = (u32)thread_id / CONTEXT_PAGE_CAPACITY;
+    if (page >= MAX_CONTEXT_PAGES) {
+        return NULL;
+    }
+
+    Context* p = _pages[page];
+    if (p == NULL) {
+        p = (Context*)OS::safeAlloc(CONTEXT_PAGE_SIZE);
+        if (p == NULL) {
+            return NULL;
+        }
+        Context* oldp = __sync_val_compare_and_swap(&_pages[page], NULL, p);
+        if (oldp != NULL) {
+            OS::safeFree(p, CONTEXT_PAGE_SIZE);
+            p = oldp;
+        }
+    }
+
+    return &p[(u32)thread_id % CONTEXT_PAGE_CAPACITY];
+}
+
+void ContextStorage::set(int thread_id, u64 span_id, u64 tag) {
+    Context* context = slot(thread_id);
+    if (context != NULL) {
+        context->span_id = span_id;
+        context->tag = tag;
+    }
+}
+
+void ContextStorage::clear(int thread_id) {
+    u32 page = (u32)thread_id / CONTEXT_PAGE_CAPACITY;
+    if (page < MAX_CONTEXT_PAGES && _pages[page] != NULL) {
+        memset(&_pages[page][(u32)thread_id % CONTEXT_PAGE_CAPACITY], 0, sizeof(Context));
+    }
+}
+
+u32 ContextStorage::registerScope(const char* name) {
+    MutexLocker ml(_scope_lock);
+
+    u32 count = (u32)_scope_count;
+    for (u32 i = 0; i < count; i++) {
+        // Skip "scope=" prefix
+        if (strcmp(_scope_names[i] + 6, name) == 0) {
+            return i + 1;
+        }
+    }
+
+    if (count >= MAX_SCOPES) {
+        return 0;
+    }
+
+    char* label = (char*)malloc(strlen(name) + 7);
+    strcpy(label, "scope=");
+    strcpy(label + 6, name);
+    _scope_names[count] = label;
+    storeRelease(_scope_count, count + 1);
+    return count + 1;
+}
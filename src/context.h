@@ -0,0 +1,81 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef _CONTEXT_H
+#define _CONTEXT_H
+
+#include "arch.h"
+#include "mutex.h"
+
+
+// Application-defined context of a thread, e.g. a tracing span and a request tag.
+// The layout is shared with ProfilingScope in Java, which writes the scope field directly
+struct Context {
+    u64 span_id;
+    u64 tag;
+    u64 scope;
+};
+
+// The size of one page of contexts in bytes. Must be at least 64K to allow mmap()
+const u32 CONTEXT_PAGE_SIZE = 65536;
+// How many thread IDs one page can hold
+const u32 CONTEXT_PAGE_CAPACITY = CONTEXT_PAGE_SIZE / sizeof(Context);
+// Linux pid_max cannot exceed 2^22; contexts of threads with larger IDs are ignored
+const u32 MAX_CONTEXT_PAGES = ((1 << 22) + CONTEXT_PAGE_CAPACITY - 1) / CONTEXT_PAGE_CAPACITY;
+// Maximum number of distinct ProfilingScope names
+const u32 MAX_SCOPES = 4096;
+
+
+// Contexts are indexed by thread ID. get() is lock-free and signal-safe.
+// A context is set by the thread itself, and is read by signal handlers running on the same thread,
+// so no fences are needed; set() is lock-free, except rare page allocations.
+class ContextStorage {
+  private:
+    Context* _pages[MAX_CONTEXT_PAGES];
+    // Scope names are never freed, since call traces refer to them
+    const char* _scope_names[MAX_SCOPES];
+    u64 _scope_count;
+    Mutex _scope_lock;
+
+  public:
+    ContextStorage();
+    ~ContextStorage();
+
+    Context get(int thread_id) {
+        u32 page = (u32)thread_id / CONTEXT_PAGE_CAPACITY;
+        if (page < MAX_CONTEXT_PAGES && _pages[page] != NULL) {
+            return _pages[page][(u32)thread_id % CONTEXT_PAGE_CAPACITY];
+        }
+        Context empty = {0, 0, 0};
+        return empty;
+    }
+
+    // Returns the context of the given thread, allocating its page if needed; NULL if not possible
+    Context* slot(int thread_id);
+
+    void set(int thread_id, u64 span_id, u64 tag);
+    void clear(int thread_id);
+
+    // Scope IDs start from 1, so that 0 means no scope; 0 is also returned when the table is full
+    u32 registerScope(const char* name);
+
+    // Frame label of the given scope, or NULL for an unknown scope
+    const char* scopeName(u64 scope) {
+        return scope - 1 < loadAcquire(_scope_count) ? _scope_names[scope - 1] : NULL;
+    }
+};
+
+#endif // _CONTEXT_H
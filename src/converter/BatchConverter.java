@@ -0,0 +1,301 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import one.jfr.JfrReader;
+import one.jfr.event.AllocationSample;
+import one.jfr.event.ContendedLock;
+import one.jfr.event.Event;
+import one.jfr.event.ExecutionSample;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts many .jfr recordings in a single JVM on a bounded pool of workers.
+ * Avoids paying JVM startup and JIT warm-up per file; each worker reuses its read buffer.
+ * The number of files processed at once is limited both by the number of workers
+ * and by the estimated heap footprint of the recordings being parsed.
+ */
+public class BatchConverter {
+    private static final int MB = 1024 * 1024;
+    // Assumed compression ratio of .jfr.gz when the gzip trailer does not tell the original size
+    private static final int GZIP_RATIO = 10;
+
+    private final String[] args;
+    private final String outputPattern;
+    private final int jobs;
+    private final Semaphore heapPermits;
+    private final int maxHeapPermits;
+    private long memoryLimit;
+    private String include;
+    private String exclude;
+    private String states;
+    private final AtomicInteger converted = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(JfrReader.BUFFER_SIZE);
+        }
+    };
+
+    public BatchConverter(String[] args, String outputPattern, int jobs, long heapBudget) {
+        this.args = args;
+        this.outputPattern = outputPattern;
+        this.jobs = jobs;
+        this.maxHeapPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, heapBudget / MB));
+        this.heapPermits = new Semaphore(maxHeapPermits, true);
+
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--memlimit")) {
+                memoryLimit = Long.parseLong(args[i + 1]) * MB;
+            } else if (args[i].equals("--include")) {
+                include = include == null ? args[i + 1] : include + '|' + args[i + 1];
+            } else if (args[i].equals("--exclude")) {
+                exclude = exclude == null ? args[i + 1] : exclude + '|' + args[i + 1];
+            } else if (args[i].equals("--states")) {
+                states = states == null ? args[i + 1] : states + ',' + args[i + 1];
+            }
+        }
+    }
+
+    public void convert(List<File> files) throws InterruptedException {
+        Map<File, String> outputs = getOutputNames(files);
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        try {
+            for (final File file : files) {
+                final String output = outputs.get(file);
+                // Block the producer until there is enough heap budget for the next recording
+                final int permits = (int) Math.min(maxHeapPermits, getUncompressedSize(file) / MB + 1);
+                heapPermits.acquire(permits);
+
+                // Don't use lambda for faster startup
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            convert(file, output);
+                            converted.incrementAndGet();
+                        } catch (Throwable e) {
+                            failed.incrementAndGet();
+                            System.err.println("Failed to convert " + file + ": " + e);
+                        } finally {
+                            heapPermits.release(permits);
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void convert(File file, String output) throws IOException {
+        File parent = new File(output).getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+
+        ByteBuffer buf = buffers.get();
+        buf.clear();
+
+        try (JfrReader jfr = new JfrReader(file.getPath(), buf)) {
+            if (output.endsWith(".nflx")) {
+                try (FileOutputStream out = new FileOutputStream(output)) {
+                    new jfr2nflx(jfr, memoryLimit).dump(out);
+                }
+            } else {
+                FlameGraph fg = new FlameGraph(args);
+                fg.input = file.getPath();
+                fg.output = output;
+
+                HashSet<String> options = new HashSet<>(Arrays.asList(args));
+                jfr2flame converter = new jfr2flame(jfr, memoryLimit);
+                converter.setFilter(include, exclude);
+                converter.setStateFrames(options.contains("--state"));
+                converter.setStateFilter(states);
+                converter.convert(fg, options.contains("--threads"), options.contains("--total"),
+                        options.contains("--lines"), options.contains("--bci"), getEventClass(options));
+                fg.dump();
+            }
+        }
+    }
+
+    // Inputs with the same name from different directories are prefixed with the parent directory name,
+    // and if still ambiguous, suffixed with a counter, so that their outputs do not overwrite each other
+    private Map<File, String> getOutputNames(List<File> files) {
+        Map<String, Integer> nameCount = new HashMap<>();
+        for (File file : files) {
+            String name = getBaseName(file);
+            Integer count = nameCount.get(name);
+            nameCount.put(name, count == null ? 1 : count + 1);
+        }
+
+        Map<File, String> outputs = new HashMap<>();
+        Set<String> usedNames = new HashSet<>();
+        for (File file : files) {
+            String name = getBaseName(file);
+            File parent = file.getParentFile();
+            if (nameCount.get(name) > 1 && parent != null && !parent.getName().isEmpty()) {
+                name = parent.getName() + '-' + name;
+            }
+
+            String uniqueName = name;
+            for (int i = 2; !usedNames.add(uniqueName); i++) {
+                uniqueName = name + '-' + i;
+            }
+            outputs.put(file, getOutputName(uniqueName));
+        }
+        return outputs;
+    }
+
+    // For .jfr.gz, the heap footprint depends on the uncompressed size, which gzip stores modulo 2^32
+    // in the last 4 bytes of the file. If it is obviously wrapped around, assume a fixed compression ratio
+    private static long getUncompressedSize(File file) {
+        long length = file.length();
+        if (!file.getName().endsWith(".gz") || length < 18) {
+            return length;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(length - 4);
+            long size = Integer.reverseBytes(raf.readInt()) & 0xffffffffL;
+            return size >= length ? size : length * GZIP_RATIO;
+        } catch (IOException e) {
+            return length * GZIP_RATIO;
+        }
+    }
+
+    private static String getBaseName(File file) {
+        String name = file.getName();
+        if (name.endsWith(".jfr")) {
+            return name.substring(0, name.length() - 4);
+        } else if (name.endsWith(".jfr.gz")) {
+            return name.substring(0, name.length() - 7);
+        }
+        return name;
+    }
+
+    private String getOutputName(String name) {
+        if (outputPattern.contains("%f")) {
+            return outputPattern.replace("%f", name);
+        }
+        return new File(outputPattern, name + ".html").getPath();
+    }
+
+    private static Class<? extends Event> getEventClass(HashSet<String> options) {
+        if (options.contains("--alloc")) {
+            return AllocationSample.class;
+        } else if (options.contains("--lock")) {
+            return ContendedLock.class;
+        } else {
+            return ExecutionSample.class;
+        }
+    }
+
+    // Expands directories to the list of .jfr and .jfr.gz files inside, and glob patterns to the matching files
+    private static void findInputs(String input, Set<File> result) throws IOException {
+        Path path = Paths.get(input);
+        if (Files.isDirectory(path)) {
+            collect(path, "*.{jfr,jfr.gz}", result);
+        } else if (input.indexOf('*') >= 0 || input.indexOf('?') >= 0) {
+            Path dir = path.getParent();
+            collect(dir != null ? dir : Paths.get("."), path.getFileName().toString(), result);
+        } else {
+            result.add(path.toFile().getCanonicalFile());
+        }
+    }
+
+    private static void collect(Path dir, String glob, Set<File> result) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path)) {
+                    result.add(path.toFile().getCanonicalFile());
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String output = null;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        long heapBudget = Runtime.getRuntime().maxMemory() / 2;
+        Set<File> files = new TreeSet<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--output") || arg.equals("-o")) {
+                output = args[++i];
+            } else if (arg.equals("--jobs")) {
+                jobs = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--heap")) {
+                heapBudget = Long.parseLong(args[++i]) * MB;
+            } else if (arg.equals("--title") || arg.equals("--minwidth") || arg.equals("--skip")
+                    || arg.equals("--include") || arg.equals("--exclude") || arg.equals("--states") || arg.equals("--memlimit")) {
+                i++;
+            } else if (!arg.startsWith("--")) {
+                findInputs(arg, files);
+            }
+        }
+
+        if (output == null || files.isEmpty()) {
+            System.out.println("Usage: java " + BatchConverter.class.getName() + " [options] --output PATTERN input...");
+            System.out.println();
+            System.out.println("Input is a .jfr file, a directory with .jfr files or a glob pattern like 'dir/*.jfr'");
+            System.out.println("Output is a directory or a file name pattern, where %f stands for");
+            System.out.println("the input file name without extension, e.g. 'out/%f.html' or 'out/%f.nflx'");
+            System.out.println("Inputs with the same name from different directories are prefixed with the directory name");
+            System.out.println();
+            System.out.println("options include all supported jfr2flame options, plus the following:");
+            System.out.println("  --jobs N     Number of concurrent conversions, default is the number of CPUs");
+            System.out.println("  --heap MB    Estimated heap budget for recordings being converted at once");
+            System.exit(1);
+        }
+
+        long startTime = System.nanoTime();
+        BatchConverter converter = new BatchConverter(args, output, jobs, heapBudget);
+        converter.convert(new ArrayList<>(files));
+        long endTime = System.nanoTime();
+
+        System.out.println("Converted " + converter.converted + " files in " + (endTime - startTime) / 1e9 + " s"
+                + (converter.failed.get() > 0 ? ", " + converter.failed + " failed" : ""));
+        if (converter.failed.get() > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -162,7 +162,7 @@ public class FlameGraph {
         }
     }
 
-    private String stripSuffix(String title) {
+    static String stripSuffix(String title) {
         int len = title.length();
         if (len >= 4 && title.charAt(len - 1) == ']' && title.regionMatches(len - 4, "_[", 0, 2)) {
             return title.substring(0, len - 4);
@@ -170,7 +170,7 @@ public class FlameGraph {
         return title;
     }
 
-    private int frameType(String title) {
+    static int frameType(String title) {
         if (title.endsWith("_[j]")) {
             return 0;
         } else if (title.endsWith("_[i]")) {
@@ -0,0 +1,534 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import one.jfr.Dictionary;
+import one.jfr.JfrReader;
+import one.jfr.event.AllocationSample;
+import one.jfr.event.ContendedLock;
+import one.jfr.event.Event;
+import one.jfr.event.ExecutionSample;
+import one.jfr.event.GroupIndex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves Flame Graphs for .jfr recordings from a local directory over HTTP.
+ * Recordings are parsed lazily on the first request; parsed profiles are kept
+ * in an LRU cache bounded by the given memory budget, so that subsequent
+ * requests for other views, diffs or time slices do not touch the file again.
+ */
+public class FlameServer {
+    private final File root;
+    private final long cacheBudget;
+    private final LinkedHashMap<ProfileKey, CacheEntry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheSize;
+
+    public FlameServer(File root, long cacheBudget) throws IOException {
+        this.root = root.getCanonicalFile();
+        this.cacheBudget = cacheBudget;
+    }
+
+    public void start(int port, int threads) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+
+        // Don't use lambda for faster startup
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                FlameServer.this.handle(exchange);
+            }
+        });
+        server.start();
+
+        System.out.println("Serving " + root + " at http://localhost:" + server.getAddress().getPort() + "/");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/")) {
+                sendResponse(exchange, 200, "text/html", listRecordings());
+            } else if (path.equals("/flame")) {
+                sendResponse(exchange, 200, "text/html", renderFlameGraph(params, null));
+            } else if (path.equals("/diff")) {
+                sendResponse(exchange, 200, "text/html", renderFlameGraph(params, requireParam(params, "base")));
+            } else {
+                sendResponse(exchange, 404, "text/plain", "Not found: " + path);
+            }
+        } catch (IllegalArgumentException e) {
+            sendResponse(exchange, 400, "text/plain", String.valueOf(e.getMessage()));
+        } catch (Throwable e) {
+            e.printStackTrace();
+            sendResponse(exchange, 500, "text/plain", e.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String listRecordings() throws IOException {
+        StringBuilder sb = new StringBuilder("<!DOCTYPE html>\n<html lang='en'>\n<head><meta charset='utf-8'><title>Recordings</title></head>\n")
+                .append("<body style='font: 12px Verdana, sans-serif'>\n<h1 style='font-size: 18px; font-weight: normal'>")
+                .append(escapeHtml(root.getPath())).append("</h1>\n<table>\n");
+
+        String[] files = root.list();
+        if (files != null) {
+            Arrays.sort(files);
+            for (String name : files) {
+                if ((name.endsWith(".jfr") || name.endsWith(".jfr.gz")) && new File(root, name).isFile()) {
+                    String file = URLEncoder.encode(name, "UTF-8");
+                    sb.append("<tr><td>").append(escapeHtml(name)).append("</td>")
+                            .append("<td><a href='/flame?file=").append(file).append("'>cpu</a></td>")
+                            .append("<td><a href='/flame?file=").append(file).append("&amp;event=alloc'>alloc</a></td>")
+                            .append("<td><a href='/flame?file=").append(file).append("&amp;event=lock'>lock</a></td></tr>\n");
+                }
+            }
+        }
+
+        synchronized (cache) {
+            sb.append("</table>\n<p>Cached profiles: ").append(cache.size())
+                    .append(", ").append(cacheSize / (1024 * 1024)).append(" MB of ")
+                    .append(cacheBudget / (1024 * 1024)).append(" MB</p>\n</body></html>\n");
+        }
+        return sb.toString();
+    }
+
+    private String renderFlameGraph(Map<String, String> params, String baseFile) throws IOException {
+        String file = requireParam(params, "file");
+        Class<? extends Event> eventClass = parseEventClass(params.get("event"));
+        boolean threads = params.containsKey("threads");
+        boolean total = params.containsKey("total");
+        boolean lines = params.containsKey("lines");
+        boolean bci = params.containsKey("bci");
+        double from = params.containsKey("from") ? Double.parseDouble(params.get("from")) : 0;
+        double to = params.containsKey("to") ? Double.parseDouble(params.get("to")) : Double.POSITIVE_INFINITY;
+
+        // Zoom is applied on the server side: only stacks under the given frames are sent to the browser
+        String zoom = params.get("root");
+        String[] prefix = zoom == null || zoom.isEmpty() ? new String[0] : zoom.split(";");
+
+        Profile profile = getProfile(new ProfileKey(resolve(file), eventClass, lines, bci));
+        Map<String, long[]> samples = profile.aggregate(threads, total, from, to, prefix);
+
+        if (baseFile != null) {
+            Profile base = getProfile(new ProfileKey(resolve(baseFile), eventClass, lines, bci));
+            samples = diff(samples, base.aggregate(threads, total, from, to, prefix));
+        }
+
+        FlameGraph fg = new FlameGraph();
+        fg.title = escapeHtml(params.containsKey("title") ? params.get("title")
+                : baseFile != null ? "Diff: " + file + " vs " + baseFile : file);
+        fg.reverse = params.containsKey("reverse");
+        fg.minwidth = params.containsKey("minwidth") ? Double.parseDouble(params.get("minwidth")) : 0;
+        fg.skip = prefix.length;
+
+        for (Map.Entry<String, long[]> e : samples.entrySet()) {
+            fg.addSample(e.getKey().split(";"), e.getValue()[0]);
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(65536);
+        try (PrintStream out = new PrintStream(bos, false, "UTF-8")) {
+            fg.dump(out);
+        }
+        return bos.toString("UTF-8");
+    }
+
+    // Leaves only stacks that grew compared to the base profile, normalized by the total
+    private static Map<String, long[]> diff(Map<String, long[]> samples, Map<String, long[]> base) {
+        double ratio = (double) sum(samples) / Math.max(sum(base), 1);
+
+        Map<String, long[]> result = new HashMap<>();
+        for (Map.Entry<String, long[]> e : samples.entrySet()) {
+            long[] baseValue = base.get(e.getKey());
+            long delta = e.getValue()[0] - (baseValue == null ? 0 : (long) (baseValue[0] * ratio));
+            if (delta > 0) {
+                result.put(e.getKey(), new long[]{delta});
+            }
+        }
+        return result;
+    }
+
+    private static long sum(Map<String, long[]> samples) {
+        long sum = 0;
+        for (long[] value : samples.values()) {
+            sum += value[0];
+        }
+        return sum;
+    }
+
+    private Profile getProfile(ProfileKey key) throws IOException {
+        CacheEntry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+            if (entry == null) {
+                cache.put(key, entry = new CacheEntry());
+            }
+        }
+
+        // Concurrent requests for the same recording wait for a single parse
+        synchronized (entry) {
+            if (entry.profile == null) {
+                try {
+                    entry.profile = Profile.load(key);
+                } catch (IOException | RuntimeException e) {
+                    synchronized (cache) {
+                        cache.remove(key);
+                    }
+                    throw e;
+                }
+
+                synchronized (cache) {
+                    if (cache.get(key) == entry) {
+                        cacheSize += entry.profile.size;
+                        evict(key);
+                    }
+                }
+            }
+            return entry.profile;
+        }
+    }
+
+    private void evict(ProfileKey recent) {
+        Iterator<Map.Entry<ProfileKey, CacheEntry>> it = cache.entrySet().iterator();
+        while (cacheSize > cacheBudget && it.hasNext()) {
+            Map.Entry<ProfileKey, CacheEntry> e = it.next();
+            Profile profile = e.getValue().profile;
+            if (profile != null && !e.getKey().equals(recent)) {
+                cacheSize -= profile.size;
+                it.remove();
+            }
+        }
+    }
+
+    private File resolve(String name) throws IOException {
+        File file = new File(root, name).getCanonicalFile();
+        if (!file.getPath().startsWith(root.getPath() + File.separator)) {
+            throw new IllegalArgumentException("File is outside of the served directory: " + name);
+        }
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("No such file: " + name);
+        }
+        return file;
+    }
+
+    private static Class<? extends Event> parseEventClass(String event) {
+        if (event == null || event.equals("cpu")) {
+            return ExecutionSample.class;
+        } else if (event.equals("alloc")) {
+            return AllocationSample.class;
+        } else if (event.equals("lock")) {
+            return ContendedLock.class;
+        }
+        throw new IllegalArgumentException("Unknown event: " + event);
+    }
+
+    private static String requireParam(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter: " + name);
+        }
+        return value;
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int eq = param.indexOf('=');
+                if (eq < 0) {
+                    params.put(URLDecoder.decode(param, "UTF-8"), "");
+                } else {
+                    params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+                            URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+        return params;
+    }
+
+    private static String escapeHtml(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("'", "&#39;");
+    }
+
+    private static void sendResponse(HttpExchange exchange, int code, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String dir = null;
+        int port = 8080;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long cacheBudget = Runtime.getRuntime().maxMemory() / 2;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--port")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--cache")) {
+                cacheBudget = Long.parseLong(args[++i]) * 1024 * 1024;
+            } else if (!arg.startsWith("--")) {
+                dir = arg;
+            }
+        }
+
+        if (dir == null) {
+            System.out.println("Usage: java " + FlameServer.class.getName() + " [options] directory");
+            System.out.println();
+            System.out.println("Options:");
+            System.out.println("  --port PORT     HTTP port on localhost, default 8080");
+            System.out.println("  --threads N     Number of request handling threads");
+            System.out.println("  --cache MB      Memory budget for parsed profiles, default half of the heap");
+            System.out.println();
+            System.out.println("Endpoints:");
+            System.out.println("  /flame?file=F   Flame Graph of the recording F");
+            System.out.println("  /diff?file=F&base=B  Stacks that grew in F compared to B");
+            System.out.println("Query options: event=cpu|alloc|lock, threads, total, lines, bci, reverse,");
+            System.out.println("  from=SEC, to=SEC, root=FRAME;FRAME..., minwidth=PERCENT, title=TITLE");
+            System.exit(1);
+        }
+
+        new FlameServer(new File(dir), cacheBudget).start(port, threads);
+    }
+
+    static class ProfileKey {
+        final File file;
+        final long lastModified;
+        final Class<? extends Event> eventClass;
+        final boolean lines;
+        final boolean bci;
+
+        ProfileKey(File file, Class<? extends Event> eventClass, boolean lines, boolean bci) {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.eventClass = eventClass;
+            this.lines = lines;
+            this.bci = bci;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ProfileKey)) {
+                return false;
+            }
+            ProfileKey other = (ProfileKey) o;
+            return file.equals(other.file) && lastModified == other.lastModified
+                    && eventClass == other.eventClass && lines == other.lines && bci == other.bci;
+        }
+
+        @Override
+        public int hashCode() {
+            return file.hashCode() * 31 + eventClass.hashCode() + (lines ? 2 : 0) + (bci ? 1 : 0);
+        }
+    }
+
+    static class CacheEntry {
+        Profile profile;
+    }
+
+    /**
+     * Parsed recording in a compact columnar form: events are sorted by time,
+     * and each event refers to a distinct resolved stack trace by index.
+     */
+    static class Profile {
+        final long startTicks;
+        final double ticksPerSec;
+        final Dictionary<String> threadFrames;
+        final long[] times;
+        final int[] tids;
+        final int[] traces;
+        final long[] values;
+        final String[][] stacks;
+        final long size;
+
+        private Profile(long startTicks, double ticksPerSec, Dictionary<String> threadFrames,
+                        long[] times, int[] tids, int[] traces, long[] values, String[][] stacks, long size) {
+            this.startTicks = startTicks;
+            this.ticksPerSec = ticksPerSec;
+            this.threadFrames = threadFrames;
+            this.times = times;
+            this.tids = tids;
+            this.traces = traces;
+            this.values = values;
+            this.stacks = stacks;
+            this.size = size;
+        }
+
+        static Profile load(ProfileKey key) throws IOException {
+            try (JfrReader jfr = new JfrReader(key.file.getPath())) {
+                jfr2flame converter = new jfr2flame(jfr);
+                List<? extends Event> events = jfr.readAllEvents(key.eventClass);
+
+                double ticksToNanos = 1e9 / jfr.ticksPerSec;
+                boolean scale = key.eventClass == ContendedLock.class && ticksToNanos != 1.0;
+
+                int count = events.size();
+                long[] times = new long[count];
+                int[] tids = new int[count];
+                int[] traces = new int[count];
+                long[] values = new long[count];
+                GroupIndex index = new GroupIndex();
+                ArrayList<String[]> stacks = new ArrayList<>();
+                Dictionary<String> threadFrames = new Dictionary<>();
+                long size = count * 24L;
+
+                for (int i = 0; i < count; i++) {
+                    Event event = events.get(i);
+                    times[i] = event.time;
+                    tids[i] = event.tid;
+                    values[i] = scale ? (long) (event.value() * ticksToNanos) : event.value();
+
+                    int trace = index.indexOf(event);
+                    if (trace == stacks.size()) {
+                        String[] stack = converter.getTrace(event, false, key.lines, key.bci);
+                        stacks.add(stack != null ? stack : new String[0]);
+                        size += estimateSize(stacks.get(trace));
+                    }
+                    traces[i] = trace;
+
+                    if (event.tid != 0 && threadFrames.get(event.tid) == null) {
+                        threadFrames.put(event.tid, converter.getThreadFrame(event.tid));
+                    }
+                }
+
+                return new Profile(jfr.startTicks, jfr.ticksPerSec, threadFrames,
+                        times, tids, traces, values, stacks.toArray(new String[0][]), size);
+            }
+        }
+
+        private static long estimateSize(String[] stack) {
+            long size = 16 + stack.length * 8L;
+            for (String frame : stack) {
+                size += 40 + frame.length() * 2L;
+            }
+            return size;
+        }
+
+        Map<String, long[]> aggregate(boolean threads, boolean total, double fromSec, double toSec, String[] prefix) {
+            int start = lowerBound(startTicks + (long) (fromSec * ticksPerSec));
+            int end = toSec == Double.POSITIVE_INFINITY ? times.length : lowerBound(startTicks + (long) (toSec * ticksPerSec));
+
+            // Sum up values per distinct stack first, then resolve names only once per stack
+            Map<Long, long[]> sums = new HashMap<>();
+            for (int i = start; i < end; i++) {
+                Long key = threads ? (long) tids[i] << 32 | traces[i] : (long) traces[i];
+                long[] sum = sums.get(key);
+                if (sum == null) {
+                    sums.put(key, sum = new long[1]);
+                }
+                sum[0] += total ? values[i] : 1;
+            }
+
+            Map<String, long[]> result = new HashMap<>();
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<Long, long[]> e : sums.entrySet()) {
+                long key = e.getKey();
+                String[] stack = stacks[(int) key];
+                String threadFrame = threads ? threadFrame((int) (key >>> 32)) : null;
+                if (!matchesPrefix(threadFrame, stack, prefix)) {
+                    continue;
+                }
+
+                sb.setLength(0);
+                if (threadFrame != null) {
+                    sb.append(threadFrame).append(';');
+                }
+                for (String frame : stack) {
+                    sb.append(frame).append(';');
+                }
+                if (sb.length() > 0) {
+                    sb.setLength(sb.length() - 1);
+                }
+
+                String name = sb.toString();
+                long[] sum = result.get(name);
+                if (sum == null) {
+                    result.put(name, e.getValue());
+                } else {
+                    sum[0] += e.getValue()[0];
+                }
+            }
+            return result;
+        }
+
+        private String threadFrame(int tid) {
+            String frame = threadFrames.get(tid);
+            return frame != null ? frame : "[tid=" + tid + ']';
+        }
+
+        private static boolean matchesPrefix(String threadFrame, String[] stack, String[] prefix) {
+            int offset = threadFrame != null ? 1 : 0;
+            if (prefix.length > stack.length + offset) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                String frame = i < offset ? threadFrame : stack[i - offset];
+                if (!matchesFrame(frame, prefix[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Frame type suffix like _[j] is not visible in the browser, so it may be omitted
+        private static boolean matchesFrame(String frame, String title) {
+            return frame.startsWith(title) && (frame.length() == title.length()
+                    || frame.length() == title.length() + 4 && frame.startsWith("_[", title.length()));
+        }
+
+        private int lowerBound(long time) {
+            int low = 0;
+            int high = times.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -25,7 +25,17 @@ public class Main {
         System.out.println();
         System.out.println("Available converters:");
         System.out.println("  FlameGraph input.collapsed output.html");
+        System.out.println("  FlameServer directory");
+        System.out.println("  BatchConverter --output out/%f.html input.jfr|directory...");
         System.out.println("  jfr2flame  input.jfr       output.html");
+        System.out.println("  jfr2collapsed input.jfr    [output.collapsed]");
         System.out.println("  jfr2nflx   input.jfr       output.nflx");
+        System.out.println("  jfr2jfr    input.jfr       output.jfr");
+        System.out.println("  jfr2heatmap input.jfr      output.html");
+        System.out.println("  jfr2flat   input.jfr       [output.txt]");
+        System.out.println("  jfr2alloc  input.jfr       [output.txt]");
+        System.out.println("  jfr2locks  input.jfr       [output.txt]");
+        System.out.println("  jfr2states input.jfr       [output.txt]");
+        System.out.println("  jfr2butterfly --method REGEX input.jfr output.html");
     }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import one.jfr.CounterMap;
+import one.jfr.JfrReader;
+import one.jfr.StackTrace;
+import one.jfr.TopN;
+import one.jfr.event.AllocationSample;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Converts allocation samples from a .jfr file to an allocation report:
+ * bytes/sec timeline, object size classes, and top classes and allocation sites
+ * with the share of bytes allocated inside TLAB.
+ */
+public class jfr2alloc {
+    // Makes ids of classes and stack traces non-zero CounterMap keys
+    private static final long KEY_BIT = 1L << 32;
+
+    private final JfrReader jfr;
+    private final jfr2flame names;
+
+    private long[] timelineInside = new long[64];
+    private long[] timelineOutside = new long[64];
+    private int buckets;
+    private final long[] sizeCount = new long[65];
+    private final long[] sizeBytes = new long[65];
+    private final CounterMap classTotal = new CounterMap();
+    private final CounterMap classInside = new CounterMap();
+    private final CounterMap siteTotal = new CounterMap();
+    private final CounterMap siteInside = new CounterMap();
+    private long totalInside;
+    private long totalOutside;
+    private long count;
+
+    public jfr2alloc(JfrReader jfr) {
+        this.jfr = jfr;
+        this.names = new jfr2flame(jfr);
+    }
+
+    public void convert(long intervalMs) throws IOException {
+        double ticksPerBucket = jfr.ticksPerSec * intervalMs / 1000.0;
+
+        for (AllocationSample event; (event = jfr.readEvent(AllocationSample.class)) != null; ) {
+            long bytes = event.value();
+            boolean inside = event.tlabSize != 0;
+
+            int bucket = (int) Math.max(0, (event.time - jfr.startTicks) / ticksPerBucket);
+            if (bucket >= timelineInside.length) {
+                int newLength = Math.max(bucket + 1, timelineInside.length * 2);
+                timelineInside = Arrays.copyOf(timelineInside, newLength);
+                timelineOutside = Arrays.copyOf(timelineOutside, newLength);
+            }
+            buckets = Math.max(buckets, bucket + 1);
+
+            // Size classes are powers of two of the object size, not of the sampled weight
+            int sizeClass = 64 - Long.numberOfLeadingZeros(event.allocationSize);
+            sizeCount[sizeClass]++;
+            sizeBytes[sizeClass] += bytes;
+
+            long classKey = event.classId | KEY_BIT;
+            long siteKey = event.stackTraceId | KEY_BIT;
+            classTotal.add(classKey, bytes);
+            siteTotal.add(siteKey, bytes);
+
+            if (inside) {
+                timelineInside[bucket] += bytes;
+                classInside.add(classKey, bytes);
+                siteInside.add(siteKey, bytes);
+                totalInside += bytes;
+            } else {
+                timelineOutside[bucket] += bytes;
+                totalOutside += bytes;
+            }
+            count++;
+        }
+    }
+
+    public void dump(PrintStream out, long intervalMs, int top, int depth) {
+        long total = totalInside + totalOutside;
+        double seconds = jfr.durationNanos() / 1e9;
+
+        out.println("Allocation samples: " + count);
+        out.println("Total bytes: " + total + " (" + percent(totalInside, total) + " inside TLAB)");
+        if (seconds > 0) {
+            out.println("Average rate: " + (long) (total / seconds) + " bytes/sec");
+        }
+
+        out.println();
+        out.println(String.format("%10s %14s %14s %14s", "time, s", "bytes/sec", "inside TLAB/s", "outside TLAB/s"));
+        double perSec = 1000.0 / intervalMs;
+        for (int i = 0; i < buckets; i++) {
+            long inside = timelineInside[i];
+            long outside = timelineOutside[i];
+            out.println(String.format("%10.1f %14d %14d %14d", i * intervalMs / 1000.0,
+                    (long) ((inside + outside) * perSec), (long) (inside * perSec), (long) (outside * perSec)));
+        }
+
+        out.println();
+        out.println(String.format("%21s %10s %16s %8s", "object size, bytes", "samples", "bytes", "percent"));
+        for (int i = 0; i < sizeCount.length; i++) {
+            if (sizeCount[i] > 0) {
+                String range = i == 0 ? "0" : (1L << (i - 1)) + " - " + ((1L << i) - 1);
+                out.println(String.format("%21s %10d %16d %8s", range, sizeCount[i], sizeBytes[i], percent(sizeBytes[i], total)));
+            }
+        }
+
+        out.println();
+        out.println(String.format("%16s %8s %12s  %s", "bytes", "percent", "inside TLAB", "class"));
+        for (long key : topKeys(classTotal, top)) {
+            String className = names.getClassName(key & ~KEY_BIT);
+            long bytes = classTotal.get(key);
+            out.println(String.format("%16d %8s %12s  %s", bytes, percent(bytes, total),
+                    percent(classInside.get(key), bytes), className == null ? "unknown" : className));
+        }
+
+        out.println();
+        out.println(String.format("%16s %8s %12s  %s", "bytes", "percent", "inside TLAB", "allocation site"));
+        for (long key : topKeys(siteTotal, top)) {
+            long bytes = siteTotal.get(key);
+            StackTrace stackTrace = jfr.stackTraces.get(key & ~KEY_BIT);
+            long[] methods = stackTrace != null ? stackTrace.methods : new long[0];
+
+            out.println(String.format("%16d %8s %12s  %s", bytes, percent(bytes, total), percent(siteInside.get(key), bytes),
+                    methods.length > 0 ? names.getMethodName(methods[0]) : "unknown"));
+            for (int i = 1; i < methods.length && i < depth; i++) {
+                out.println("                                         " + names.getMethodName(methods[i]));
+            }
+            if (methods.length > depth) {
+                out.println("                                         ...");
+            }
+        }
+    }
+
+    private static long[] topKeys(CounterMap map, int top) {
+        TopN topN = new TopN(top);
+        map.forEach(topN);
+        return topN.sortedKeys();
+    }
+
+    private static String percent(long value, long total) {
+        return String.format("%.2f%%", total == 0 ? 0.0 : value * 100.0 / total);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String input = null;
+        String output = null;
+        long interval = 1000;
+        int top = 20;
+        int depth = 5;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--interval")) {
+                interval = Long.parseLong(args[++i]);
+            } else if (arg.equals("--top")) {
+                top = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--depth")) {
+                depth = Integer.parseInt(args[++i]);
+            } else if (!arg.startsWith("--")) {
+                if (input == null) {
+                    input = arg;
+                } else {
+                    output = arg;
+                }
+            }
+        }
+
+        if (input == null || interval <= 0) {
+            System.out.println("Usage: java " + jfr2alloc.class.getName() + " [options] input.jfr [output.txt]");
+            System.out.println();
+            System.out.println("Options:");
+            System.out.println("  --interval MS  Timeline resolution, default 1000 ms");
+            System.out.println("  --top N        Number of classes and allocation sites to show, default 20");
+            System.out.println("  --depth N      Number of frames to show for each allocation site, default 5");
+            System.exit(1);
+        }
+
+        try (JfrReader jfr = new JfrReader(input)) {
+            jfr2alloc alloc = new jfr2alloc(jfr);
+            alloc.convert(interval);
+
+            if (output == null) {
+                alloc.dump(System.out, interval, top, depth);
+            } else {
+                try (PrintStream out = new PrintStream(new FileOutputStream(output), false, "UTF-8")) {
+                    alloc.dump(out, interval, top, depth);
+                }
+            }
+        }
+    }
+}
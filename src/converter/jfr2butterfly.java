@@ -0,0 +1,277 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import one.jfr.CounterMap;
+import one.jfr.JfrReader;
+import one.jfr.StackTrace;
+import one.jfr.event.AllocationSample;
+import one.jfr.event.ContendedLock;
+import one.jfr.event.Event;
+import one.jfr.event.EventAggregator;
+import one.jfr.event.ExecutionSample;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Converts .jfr output produced by async-profiler to a butterfly view:
+ * for every method matching the given pattern, a merged tree of its callers
+ * and a merged tree of its callees are rendered on a single HTML page.
+ */
+public class jfr2butterfly {
+    private static final int MATCHED = 1;
+    private static final int NOT_MATCHED = 2;
+
+    private final JfrReader jfr;
+    private final jfr2flame names;
+    private final Pattern pattern;
+    private final CounterMap matches = new CounterMap();
+    private final Map<String, Butterfly> butterflies = new HashMap<>();
+
+    public jfr2butterfly(JfrReader jfr, String pattern) {
+        this.jfr = jfr;
+        this.names = new jfr2flame(jfr);
+        this.pattern = Pattern.compile(pattern);
+    }
+
+    public void convert(final boolean total, final boolean lines, final boolean bci,
+                        final Class<? extends Event> eventClass) throws IOException {
+        EventAggregator agg = new EventAggregator(false, total);
+        for (Event event; (event = jfr.readEvent(eventClass)) != null; ) {
+            agg.collect(event);
+        }
+
+        final double ticksToNanos = 1e9 / jfr.ticksPerSec;
+        final boolean scale = total && eventClass == ContendedLock.class && ticksToNanos != 1.0;
+
+        // Don't use lambda for faster startup
+        agg.forEach(new EventAggregator.Visitor() {
+            @Override
+            public void visit(Event event, long value) {
+                StackTrace stackTrace = jfr.stackTraces.get(event.stackTraceId);
+                if (stackTrace != null) {
+                    addStack(event, stackTrace, scale ? (long) (value * ticksToNanos) : value, lines, bci);
+                }
+            }
+        });
+    }
+
+    private void addStack(Event event, StackTrace stackTrace, long value, boolean lines, boolean bci) {
+        long[] methods = stackTrace.methods;
+        String[] trace = null;
+
+        // Frames are walked from the root, so the first occurrence of a target is the outermost one.
+        // Deeper recursive occurrences belong to its callees tree and are not counted again.
+        for (int i = methods.length; --i >= 0; ) {
+            long methodId = methods[i];
+            if (!isTarget(methodId) || seenBefore(methods, i, names.getMethodName(methodId))) {
+                continue;
+            }
+
+            if (trace == null) {
+                trace = names.getTrace(event, false, lines, bci);
+            }
+            int pos = methods.length - 1 - i;
+
+            String name = names.getMethodName(methodId);
+            Butterfly butterfly = butterflies.get(name);
+            if (butterfly == null) {
+                butterflies.put(name, butterfly = new Butterfly(name));
+            }
+            butterfly.add(trace, pos, value);
+        }
+    }
+
+    // Overloads share the name and are merged into one butterfly
+    private boolean seenBefore(long[] methods, int index, String name) {
+        for (int i = methods.length; --i > index; ) {
+            if (isTarget(methods[i]) && names.getMethodName(methods[i]).equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The pattern is evaluated once per method id
+    private boolean isTarget(long methodId) {
+        long match = matches.get(methodId);
+        if (match == 0) {
+            match = pattern.matcher(names.getMethodName(methodId)).find() ? MATCHED : NOT_MATCHED;
+            matches.put(methodId, match);
+        }
+        return match == MATCHED;
+    }
+
+    public void dump(PrintStream out, String title, int top) throws IOException {
+        List<Butterfly> list = new ArrayList<>(butterflies.values());
+        Collections.sort(list, new Comparator<Butterfly>() {
+            @Override
+            public int compare(Butterfly b1, Butterfly b2) {
+                return Long.compare(b2.total, b1.total);
+            }
+        });
+
+        out.print("<!DOCTYPE html>\n<html lang='en'>\n<head>\n<meta charset='utf-8'>\n<style>\n" +
+                "\tbody {margin: 0; padding: 10px; background-color: #ffffff}\n" +
+                "\th1 {margin: 5px 0 0 0; font-size: 18px; font-weight: normal; text-align: center}\n" +
+                "\th2 {margin: 15px 0 5px 0; font-size: 14px; font-weight: normal}\n" +
+                "\tiframe {width: 100%; border: none; display: block}\n" +
+                "</style>\n</head>\n<body style='font: 12px Verdana, sans-serif'>\n");
+        out.print("<h1>" + escapeHtml(title) + "</h1>\n");
+        if (list.isEmpty()) {
+            out.print("<p>No methods matching " + escapeHtml(pattern.pattern()) + "</p>\n");
+        }
+
+        for (int i = 0; i < list.size() && i < top; i++) {
+            Butterfly butterfly = list.get(i);
+            out.print("<h2>" + escapeHtml(butterfly.name) + ": " + butterfly.total + "</h2>\n");
+            printFrame(out, butterfly.callers, butterfly.callersDepth);
+            printFrame(out, butterfly.callees, butterfly.calleesDepth);
+        }
+
+        out.print("</body></html>\n");
+    }
+
+    // Each tree is a regular Flame Graph page embedded with srcdoc, so that pages do not share scripts
+    private void printFrame(PrintStream out, FlameGraph fg, int depth) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(32768);
+        try (PrintStream ps = new PrintStream(bos, false, "UTF-8")) {
+            fg.dump(ps);
+        }
+        String html = bos.toString("UTF-8").replace("&", "&amp;").replace("\"", "&quot;");
+        int height = Math.min((depth + 1) * 16, 32767) + 100;
+        out.print("<iframe style='height: " + height + "px' srcdoc=\"" + html + "\"></iframe>\n");
+    }
+
+    private static String escapeHtml(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    public static void main(String[] args) throws Exception {
+        String input = null;
+        String output = null;
+        String method = null;
+        String title = null;
+        int top = 10;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--method")) {
+                method = method == null ? args[++i] : method + '|' + args[++i];
+            } else if (arg.equals("--title")) {
+                title = args[++i];
+            } else if (arg.equals("--top")) {
+                top = Integer.parseInt(args[++i]);
+            } else if (!arg.startsWith("--")) {
+                if (input == null) {
+                    input = arg;
+                } else {
+                    output = arg;
+                }
+            }
+        }
+
+        if (input == null || method == null) {
+            System.out.println("Usage: java " + jfr2butterfly.class.getName() + " --method REGEX [options] input.jfr [output.html]");
+            System.out.println();
+            System.out.println("Options:");
+            System.out.println("  --method REGEX  Target methods; may be repeated");
+            System.out.println("  --top N    Maximum number of matched methods to show, default 10");
+            System.out.println("  --title TITLE");
+            System.out.println("  --alloc    Allocation profile");
+            System.out.println("  --lock     Lock contention profile");
+            System.out.println("  --total    Accumulate the total value (time, bytes, etc.)");
+            System.out.println("  --lines    Show line numbers");
+            System.out.println("  --bci      Show bytecode indices");
+            System.exit(1);
+        }
+
+        HashSet<String> options = new HashSet<>(Arrays.asList(args));
+        Class<? extends Event> eventClass;
+        if (options.contains("--alloc")) {
+            eventClass = AllocationSample.class;
+        } else if (options.contains("--lock")) {
+            eventClass = ContendedLock.class;
+        } else {
+            eventClass = ExecutionSample.class;
+        }
+
+        try (JfrReader jfr = new JfrReader(input)) {
+            jfr2butterfly butterfly = new jfr2butterfly(jfr, method);
+            butterfly.convert(options.contains("--total"), options.contains("--lines"), options.contains("--bci"), eventClass);
+
+            if (title == null) {
+                title = "Callers and callees of " + method;
+            }
+            if (output == null) {
+                butterfly.dump(System.out, title, top);
+            } else {
+                try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(output), 32768);
+                     PrintStream out = new PrintStream(bos, false, "UTF-8")) {
+                    butterfly.dump(out, title, top);
+                }
+            }
+        }
+    }
+
+    static class Butterfly {
+        final String name;
+        final FlameGraph callers = new FlameGraph();
+        final FlameGraph callees = new FlameGraph();
+        int callersDepth;
+        int calleesDepth;
+        long total;
+
+        Butterfly(String name) {
+            this.name = name;
+            callers.title = "Callers of " + name.replace("&", "&amp;").replace("<", "&lt;");
+            callees.title = "Callees of " + name.replace("&", "&amp;").replace("<", "&lt;");
+            callees.reverse = true;
+        }
+
+        // trace is ordered from the root; pos is the index of the target frame
+        void add(String[] trace, int pos, long value) {
+            // Callers grow up from the target towards the thread root
+            String[] up = new String[pos + 1];
+            for (int i = 0; i <= pos; i++) {
+                up[i] = trace[pos - i];
+            }
+            callers.addSample(up, value);
+            callersDepth = Math.max(callersDepth, up.length);
+
+            // Callees hang down from the target; reversed Flame Graph expects the leaf first
+            String[] down = new String[trace.length - pos];
+            for (int i = 0; i < down.length; i++) {
+                down[i] = trace[trace.length - 1 - i];
+            }
+            callees.addSample(down, value);
+            calleesDepth = Math.max(calleesDepth, down.length);
+
+            total += value;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import one.jfr.JfrReader;
+import one.jfr.event.AllocationSample;
+import one.jfr.event.ContendedLock;
+import one.jfr.event.Event;
+import one.jfr.event.EventAggregator;
+import one.jfr.event.ExecutionSample;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Converts .jfr output produced by async-profiler to collapsed stacks
+ * understood by FlameGraph.pl, speedscope and similar tools.
+ * Samples are aggregated by stack trace id, and every distinct stack is written once
+ * without building a call tree.
+ */
+public class jfr2collapsed {
+
+    private final JfrReader jfr;
+    private final jfr2flame names;
+
+    public jfr2collapsed(JfrReader jfr) {
+        this.jfr = jfr;
+        this.names = new jfr2flame(jfr);
+    }
+
+    public void convert(final Writer out, final boolean threads, boolean tags, boolean total,
+                        final boolean lines, final boolean bci,
+                        Class<? extends Event> eventClass) throws IOException {
+        names.setTagFrames(tags);
+        EventAggregator agg = new EventAggregator(threads, tags, total);
+        for (Event event; (event = jfr.readEvent(eventClass)) != null; ) {
+            agg.collect(event);
+        }
+
+        final double ticksToNanos = 1e9 / jfr.ticksPerSec;
+        final boolean scale = total && eventClass == ContendedLock.class && ticksToNanos != 1.0;
+        final StringBuilder sb = new StringBuilder(4096);
+
+        // Don't use lambda for faster startup
+        final IOException[] error = new IOException[1];
+        agg.forEach(new EventAggregator.Visitor() {
+            @Override
+            public void visit(Event event, long value) {
+                String[] trace = names.getTrace(event, threads, lines, bci);
+                if (trace == null || error[0] != null) {
+                    return;
+                }
+
+                sb.setLength(0);
+                for (String frame : trace) {
+                    sb.append(frame).append(';');
+                }
+                if (trace.length > 0) {
+                    sb.setLength(sb.length() - 1);
+                }
+                sb.append(' ').append(scale ? (long) (value * ticksToNanos) : value).append('\n');
+
+                try {
+                    out.append(sb);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String input = null;
+        String output = null;
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                if (input == null) {
+                    input = arg;
+                } else {
+                    output = arg;
+                }
+            }
+        }
+
+        if (input == null) {
+            System.out.println("Usage: java " + jfr2collapsed.class.getName() + " [options] input.jfr [output.collapsed]");
+            System.out.println();
+            System.out.println("Options:");
+            System.out.println("  --alloc    Allocation profile");
+            System.out.println("  --lock     Lock contention profile");
+            System.out.println("  --threads  Split profile by threads");
+            System.out.println("  --tags     Split profile by thread context tags");
+            System.out.println("  --total    Accumulate the total value (time, bytes, etc.)");
+            System.out.println("  --lines    Show line numbers");
+            System.out.println("  --bci      Show bytecode indices");
+            System.exit(1);
+        }
+
+        HashSet<String> options = new HashSet<>(Arrays.asList(args));
+        Class<? extends Event> eventClass;
+        if (options.contains("--alloc")) {
+            eventClass = AllocationSample.class;
+        } else if (options.contains("--lock")) {
+            eventClass = ContendedLock.class;
+        } else {
+            eventClass = ExecutionSample.class;
+        }
+
+        OutputStream os = output == null ? System.out : new FileOutputStream(output);
+        try (JfrReader jfr = new JfrReader(input);
+             Writer out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 65536)) {
+            new jfr2collapsed(jfr).convert(out, options.contains("--threads"), options.contains("--tags"),
+                    options.contains("--total"), options.contains("--lines"), options.contains("--bci"), eventClass);
+        }
+    }
+}
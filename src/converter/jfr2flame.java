@@ -24,11 +24,17 @@ import one.jfr.event.ContendedLock;
 import one.jfr.event.Event;
 import one.jfr.event.EventAggregator;
 import one.jfr.event.ExecutionSample;
+import one.jfr.event.SpillingAggregator;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 /**
  * Converts .jfr output produced by async-profiler to HTML Flame Graph.
@@ -38,63 +44,259 @@ public class jfr2flame {
     private static final String[] FRAME_SUFFIX = {"_[j]", "_[j]", "_[i]", "", "", "_[k]"};
 
     private final JfrReader jfr;
+    private final long memoryLimit;
     private final Dictionary<String> methodNames = new Dictionary<>();
+    private final Dictionary<String> frameNames = new Dictionary<>();
+
+    // Filter results are cached per method id and per stack trace id, so regexes never run per sample
+    private Pattern include;
+    private Pattern exclude;
+    private final BitSet methodsChecked = new BitSet();
+    private final BitSet methodsIncluded = new BitSet();
+    private final BitSet methodsExcluded = new BitSet();
+    private final BitSet stacksChecked = new BitSet();
+    private final BitSet stacksAccepted = new BitSet();
+
+    private boolean stateFrames;
+    private BitSet states;
+    private boolean tagFrames;
+    private long[] tags;
 
     public jfr2flame(JfrReader jfr) {
+        this(jfr, 0);
+    }
+
+    /**
+     * @param memoryLimit how many bytes of aggregated stacks to keep in heap before spilling to disk, 0 for unlimited
+     */
+    public jfr2flame(JfrReader jfr, long memoryLimit) {
         this.jfr = jfr;
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Keeps only stacks with at least one frame matching include
+     * and without frames matching exclude. Either pattern may be null.
+     */
+    public void setFilter(String include, String exclude) {
+        this.include = include == null ? null : Pattern.compile(include);
+        this.exclude = exclude == null ? null : Pattern.compile(exclude);
+    }
+
+    /**
+     * Adds the thread state of every execution sample as a leaf frame,
+     * so that running and waiting time of a wall clock profile are told apart.
+     */
+    public void setStateFrames(boolean stateFrames) {
+        this.stateFrames = stateFrames;
+    }
+
+    /**
+     * Keeps only execution samples in the given comma separated thread states,
+     * e.g. "RUNNABLE,SLEEPING". The STATE_ prefix may be omitted. Null keeps all samples.
+     */
+    public void setStateFilter(String stateNames) {
+        if (stateNames == null) {
+            this.states = null;
+            return;
+        }
+
+        this.states = new BitSet();
+        for (String name : stateNames.split(",")) {
+            String stateName = name.trim().toUpperCase();
+            if (!stateName.startsWith("STATE_")) {
+                stateName = "STATE_" + stateName;
+            }
+            int state = findState(stateName);
+            if (state < 0) {
+                throw new IllegalArgumentException("Unknown thread state " + name + ", expected one of " + jfr.threadStates.values());
+            }
+            states.set(state);
+        }
+    }
+
+    /**
+     * Splits the profile by thread context tags set with AsyncProfiler.setContext():
+     * events with a non-zero tag get a root frame [tag=N].
+     */
+    public void setTagFrames(boolean tagFrames) {
+        this.tagFrames = tagFrames;
+    }
+
+    /**
+     * Keeps only events with the given comma separated context tags. Null keeps all events.
+     */
+    public void setTagFilter(String tagList) {
+        if (tagList == null) {
+            this.tags = null;
+            return;
+        }
+
+        String[] values = tagList.split(",");
+        this.tags = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            tags[i] = Long.parseLong(values[i].trim());
+        }
+        Arrays.sort(tags);
+    }
+
+    private int findState(String stateName) {
+        for (Map.Entry<Integer, String> entry : jfr.threadStates.entrySet()) {
+            if (entry.getValue().equals(stateName)) {
+                return entry.getKey();
+            }
+        }
+        return -1;
     }
 
     public void convert(final FlameGraph fg, final boolean threads, final boolean total,
                         final boolean lines, final boolean bci,
                         final Class<? extends Event> eventClass) throws IOException {
-        EventAggregator agg = new EventAggregator(threads, total);
+        // Thread state is not a part of the event group, so every state gets its own aggregator
+        List<EventAggregator> aggs = new ArrayList<>();
+        boolean filter = include != null || exclude != null;
         for (Event event; (event = jfr.readEvent(eventClass)) != null; ) {
-            agg.collect(event);
+            int slot = 0;
+            if (event instanceof ExecutionSample) {
+                int state = ((ExecutionSample) event).threadState;
+                if (states != null && !states.get(state)) {
+                    continue;
+                }
+                slot = stateFrames ? state : 0;
+            }
+            if (tags != null && Arrays.binarySearch(tags, event.tag) < 0) {
+                continue;
+            }
+            if (!filter || acceptStack(event.stackTraceId)) {
+                while (aggs.size() <= slot) {
+                    aggs.add(memoryLimit > 0
+                            ? new SpillingAggregator(threads, tagFrames, total, memoryLimit)
+                            : new EventAggregator(threads, tagFrames, total));
+                }
+                aggs.get(slot).collect(event);
+            }
         }
 
         final double ticksToNanos = 1e9 / jfr.ticksPerSec;
         final boolean scale = total && eventClass == ContendedLock.class && ticksToNanos != 1.0;
 
         // Don't use lambda for faster startup
-        agg.forEach(new EventAggregator.Visitor() {
+        EventAggregator.Visitor visitor = new EventAggregator.Visitor() {
             @Override
             public void visit(Event event, long value) {
-                StackTrace stackTrace = jfr.stackTraces.get(event.stackTraceId);
-                if (stackTrace != null) {
-                    long[] methods = stackTrace.methods;
-                    byte[] types = stackTrace.types;
-                    int[] locations = stackTrace.locations;
-                    String classFrame = getClassFrame(event);
-                    String[] trace = new String[methods.length + (threads ? 1 : 0) + (classFrame != null ? 1 : 0)];
-                    if (threads) {
-                        trace[0] = getThreadFrame(event.tid);
-                    }
-                    int idx = trace.length;
-                    if (classFrame != null) {
-                        trace[--idx] = classFrame;
-                    }
-                    for (int i = 0; i < methods.length; i++) {
-                        String methodName = getMethodName(methods[i]);
-                        int location;
-                        if (lines && (location = locations[i] >>> 16) != 0) {
-                            methodName += ":" + location;
-                        } else if (bci && (location = locations[i] & 0xffff) != 0) {
-                            methodName += "@" + location;
-                        }
-                        trace[--idx] = methodName + FRAME_SUFFIX[types[i]];
-                    }
+                String[] trace = getTrace(event, threads, lines, bci);
+                if (trace != null) {
                     fg.addSample(trace, scale ? (long) (value * ticksToNanos) : value);
                 }
             }
-        });
+        };
+        for (EventAggregator agg : aggs) {
+            agg.forEach(visitor);
+        }
+    }
+
+    public String[] getTrace(Event event, boolean threads, boolean lines, boolean bci) {
+        StackTrace stackTrace = jfr.stackTraces.get(event.stackTraceId);
+        if (stackTrace == null) {
+            return null;
+        }
+
+        long[] methods = stackTrace.methods;
+        byte[] types = stackTrace.types;
+        int[] locations = stackTrace.locations;
+        String leafFrame = getLeafFrame(event);
+        boolean tagFrame = tagFrames && event.tag != 0;
+        String[] trace = new String[methods.length + (tagFrame ? 1 : 0) + (threads ? 1 : 0) + (leafFrame != null ? 1 : 0)];
+        if (tagFrame) {
+            trace[0] = "[tag=" + event.tag + ']';
+        }
+        if (threads) {
+            trace[tagFrame ? 1 : 0] = getThreadFrame(event.tid);
+        }
+        int idx = trace.length;
+        if (leafFrame != null) {
+            trace[--idx] = leafFrame;
+        }
+        for (int i = 0; i < methods.length; i++) {
+            int line = lines ? locations[i] >>> 16 : 0;
+            int location = line != 0 ? line : bci ? locations[i] & 0xffff : 0;
+            trace[--idx] = getFrameName(methods[i], types[i], location, line != 0);
+        }
+        return trace;
+    }
+
+    // Distinct stacks share most of their frames, so a frame name is built once
+    // per method, frame type and location, and the same String is reused afterwards
+    private String getFrameName(long methodId, byte type, int location, boolean line) {
+        if (methodId < 0 || methodId >= 1L << 43) {
+            return buildFrameName(methodId, type, location, line);
+        }
+
+        long key = Long.MIN_VALUE | methodId << 20 | (long) type << 17 | (line ? 1 << 16 : 0) | location;
+        String result = frameNames.get(key);
+        if (result == null) {
+            frameNames.put(key, result = buildFrameName(methodId, type, location, line));
+        }
+        return result;
+    }
+
+    private String buildFrameName(long methodId, byte type, int location, boolean line) {
+        String methodName = getMethodName(methodId);
+        String suffix = FRAME_SUFFIX[type];
+        if (location == 0) {
+            return suffix.isEmpty() ? methodName : methodName + suffix;
+        }
+        return new StringBuilder(methodName.length() + suffix.length() + 6)
+                .append(methodName).append(line ? ':' : '@').append(location).append(suffix).toString();
+    }
+
+    private boolean acceptStack(int stackTraceId) {
+        if (stackTraceId < 0) {
+            return matchesFilter(jfr.stackTraces.get(stackTraceId));
+        }
+        if (!stacksChecked.get(stackTraceId)) {
+            stacksChecked.set(stackTraceId);
+            stacksAccepted.set(stackTraceId, matchesFilter(jfr.stackTraces.get(stackTraceId)));
+        }
+        return stacksAccepted.get(stackTraceId);
+    }
+
+    private boolean matchesFilter(StackTrace stackTrace) {
+        if (stackTrace == null) {
+            return include == null;
+        }
+
+        boolean included = include == null;
+        for (long methodId : stackTrace.methods) {
+            if (methodId < 0 || methodId > Integer.MAX_VALUE) {
+                String name = getMethodName(methodId);
+                if (exclude != null && exclude.matcher(name).find()) return false;
+                included |= include != null && include.matcher(name).find();
+                continue;
+            }
+
+            int id = (int) methodId;
+            if (!methodsChecked.get(id)) {
+                String name = getMethodName(methodId);
+                methodsChecked.set(id);
+                methodsIncluded.set(id, include != null && include.matcher(name).find());
+                methodsExcluded.set(id, exclude != null && exclude.matcher(name).find());
+            }
+            if (methodsExcluded.get(id)) {
+                return false;
+            }
+            included |= methodsIncluded.get(id);
+        }
+        return included;
     }
 
-    private String getThreadFrame(int tid) {
+    public String getThreadFrame(int tid) {
         String threadName = jfr.threads.get(tid);
         return threadName == null ? "[tid=" + tid + ']' : '[' + threadName + " tid=" + tid + ']';
     }
 
-    private String getClassFrame(Event event) {
+    // Allocated or contended class, or the thread state of an execution sample
+    private String getLeafFrame(Event event) {
         long classId;
         String suffix;
         if (event instanceof AllocationSample) {
@@ -103,13 +305,22 @@ public class jfr2flame {
         } else if (event instanceof ContendedLock) {
             classId = ((ContendedLock) event).classId;
             suffix = "_[i]";
+        } else if (stateFrames && event instanceof ExecutionSample) {
+            int state = ((ExecutionSample) event).threadState;
+            String stateName = jfr.threadStates.get(state);
+            return '[' + (stateName == null ? "state=" + state : stateName) + ']';
         } else {
             return null;
         }
 
+        String className = getClassName(classId);
+        return className == null ? "null" : className + suffix;
+    }
+
+    public String getClassName(long classId) {
         ClassRef cls = jfr.classes.get(classId);
         if (cls == null) {
-            return "null";
+            return null;
         }
         byte[] className = jfr.symbols.get(cls.name);
 
@@ -122,7 +333,7 @@ public class jfr2flame {
         while (arrayDepth-- > 0) {
             sb.append("[]");
         }
-        return sb.append(suffix).toString();
+        return sb.toString();
     }
 
     private String toJavaClassName(byte[] symbol, int start) {
@@ -150,7 +361,7 @@ public class jfr2flame {
         }
     }
 
-    private String getMethodName(long methodId) {
+    public String getMethodName(long methodId) {
         String result = methodNames.get(methodId);
         if (result != null) {
             return result;
@@ -167,9 +378,11 @@ public class jfr2flame {
             if (className == null || className.length == 0) {
                 result = new String(methodName, StandardCharsets.UTF_8);
             } else {
-                String classStr = new String(className, StandardCharsets.UTF_8);
-                String methodStr = new String(methodName, StandardCharsets.UTF_8);
-                result = classStr + '.' + methodStr;
+                // Join the symbols first to decode UTF-8 only once
+                byte[] fullName = Arrays.copyOf(className, className.length + 1 + methodName.length);
+                fullName[className.length] = '.';
+                System.arraycopy(methodName, 0, fullName, className.length + 1, methodName.length);
+                result = new String(fullName, StandardCharsets.UTF_8);
             }
         }
 
@@ -178,6 +391,29 @@ public class jfr2flame {
     }
 
     public static void main(String[] args) throws Exception {
+        // Options with values that FlameGraph would otherwise treat as file names
+        long memoryLimit = 0;
+        String include = null;
+        String exclude = null;
+        String states = null;
+        String tags = null;
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--memlimit")) {
+                memoryLimit = Long.parseLong(args[i + 1]) * 1024 * 1024;
+            } else if (args[i].equals("--include")) {
+                include = include == null ? args[i + 1] : include + '|' + args[i + 1];
+            } else if (args[i].equals("--exclude")) {
+                exclude = exclude == null ? args[i + 1] : exclude + '|' + args[i + 1];
+            } else if (args[i].equals("--states")) {
+                states = states == null ? args[i + 1] : states + ',' + args[i + 1];
+            } else if (args[i].equals("--tag")) {
+                tags = tags == null ? args[i + 1] : tags + ',' + args[i + 1];
+            } else {
+                continue;
+            }
+            args[++i] = "";
+        }
+
         FlameGraph fg = new FlameGraph(args);
         if (fg.input == null) {
             System.out.println("Usage: java " + jfr2flame.class.getName() + " [options] input.jfr [output.html]");
@@ -189,6 +425,13 @@ public class jfr2flame {
             System.out.println("  --total    Accumulate the total value (time, bytes, etc.)");
             System.out.println("  --lines    Show line numbers");
             System.out.println("  --bci      Show bytecode indices");
+            System.out.println("  --include REGEX  Only stacks with a frame matching the pattern");
+            System.out.println("  --exclude REGEX  Skip stacks with a frame matching the pattern");
+            System.out.println("  --state    Add thread state as a leaf frame");
+            System.out.println("  --states LIST  Only samples in the given thread states, e.g. RUNNABLE,SLEEPING");
+            System.out.println("  --tags     Split profile by thread context tags");
+            System.out.println("  --tag LIST     Only events with the given context tags");
+            System.out.println("  --memlimit MB  Spill aggregated stacks to disk above this heap usage");
             System.exit(1);
         }
 
@@ -208,7 +451,13 @@ public class jfr2flame {
         }
 
         try (JfrReader jfr = new JfrReader(fg.input)) {
-            new jfr2flame(jfr).convert(fg, threads, total, lines, bci, eventClass);
+            jfr2flame converter = new jfr2flame(jfr, memoryLimit);
+            converter.setFilter(include, exclude);
+            converter.setStateFrames(options.contains("--state"));
+            converter.setStateFilter(states);
+            converter.setTagFrames(options.contains("--tags"));
+            converter.setTagFilter(tags);
+            converter.convert(fg, threads, total, lines, bci, eventClass);
         }
 
         fg.dump();
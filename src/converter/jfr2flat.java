@@ -0,0 +1,213 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import one.jfr.CounterMap;
+import one.jfr.JfrReader;
+import one.jfr.StackTrace;
+import one.jfr.TopN;
+import one.jfr.event.AllocationSample;
+import one.jfr.event.ContendedLock;
+import one.jfr.event.Event;
+import one.jfr.event.EventAggregator;
+import one.jfr.event.ExecutionSample;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Converts .jfr output produced by async-profiler to a flat profile:
+ * top N methods (or source lines) by self or total time, as text or JSON.
+ */
+public class jfr2flat {
+
+    private final JfrReader jfr;
+    private final jfr2flame names;
+    private final CounterMap self = new CounterMap();
+    private final CounterMap total = new CounterMap();
+    private boolean lines;
+    private long grandTotal;
+
+    public jfr2flat(JfrReader jfr) {
+        this.jfr = jfr;
+        this.names = new jfr2flame(jfr);
+    }
+
+    public void convert(boolean totalValue, final boolean lines, Class<? extends Event> eventClass) throws IOException {
+        this.lines = lines;
+
+        EventAggregator agg = new EventAggregator(false, totalValue);
+        for (Event event; (event = jfr.readEvent(eventClass)) != null; ) {
+            agg.collect(event);
+        }
+
+        final double ticksToNanos = 1e9 / jfr.ticksPerSec;
+        final boolean scale = totalValue && eventClass == ContendedLock.class && ticksToNanos != 1.0;
+
+        // Total is counted once per stack even if a method appears in it recursively
+        final CounterMap lastSeen = new CounterMap();
+
+        // Don't use lambda for faster startup
+        agg.forEach(new EventAggregator.Visitor() {
+            long visit;
+
+            @Override
+            public void visit(Event event, long value) {
+                StackTrace stackTrace = jfr.stackTraces.get(event.stackTraceId);
+                if (stackTrace == null || stackTrace.methods.length == 0) {
+                    return;
+                }
+                if (scale) {
+                    value = (long) (value * ticksToNanos);
+                }
+
+                long[] methods = stackTrace.methods;
+                int[] locations = stackTrace.locations;
+                visit++;
+                grandTotal += value;
+
+                self.add(key(methods[0], locations[0]), value);
+                for (int i = 0; i < methods.length; i++) {
+                    long key = key(methods[i], locations[i]);
+                    if (lastSeen.get(key) != visit) {
+                        lastSeen.put(key, visit);
+                        total.add(key, value);
+                    }
+                }
+            }
+        });
+    }
+
+    // Method id occupies the upper bits, line number (if requested) the lower 16 bits
+    private long key(long methodId, int location) {
+        return lines ? methodId << 16 | location >>> 16 : methodId << 16;
+    }
+
+    private String name(long key) {
+        String name = names.getMethodName(key >>> 16);
+        int line = (int) (key & 0xffff);
+        return line != 0 ? name + ':' + line : name;
+    }
+
+    public void dump(PrintStream out, int top, boolean sortBySelf, boolean json, String units) {
+        TopN topN = new TopN(top);
+        (sortBySelf ? self : total).forEach(topN);
+        long[] keys = topN.sortedKeys();
+
+        if (json) {
+            out.println("{");
+            out.println("  \"units\": \"" + units + "\",");
+            out.println("  \"total\": " + grandTotal + ",");
+            out.print("  \"methods\": [");
+            for (int i = 0; i < keys.length; i++) {
+                out.print(i == 0 ? "\n" : ",\n");
+                out.print("    {\"name\": \"" + escapeJson(name(keys[i])) + "\", \"self\": " + self.get(keys[i])
+                        + ", \"total\": " + total.get(keys[i]) + "}");
+            }
+            out.println("\n  ]");
+            out.println("}");
+        } else {
+            double percent = 100.0 / Math.max(grandTotal, 1);
+            out.println(String.format("%12s  percent  %12s  percent  %s", "self", "total", lines ? "line" : "method"));
+            out.println("  ----------  -------  ----------  -------  ------");
+            for (long key : keys) {
+                long s = self.get(key);
+                long t = total.get(key);
+                out.println(String.format("%12d  %6.2f%%  %12d  %6.2f%%  %s", s, s * percent, t, t * percent, name(key)));
+            }
+        }
+    }
+
+    private static String escapeJson(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String input = null;
+        String output = null;
+        int top = 20;
+        boolean sortBySelf = true;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--top")) {
+                top = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--sort")) {
+                sortBySelf = !args[++i].equals("total");
+            } else if (!arg.startsWith("--")) {
+                if (input == null) {
+                    input = arg;
+                } else {
+                    output = arg;
+                }
+            }
+        }
+
+        if (input == null) {
+            System.out.println("Usage: java " + jfr2flat.class.getName() + " [options] input.jfr [output.txt]");
+            System.out.println();
+            System.out.println("Options:");
+            System.out.println("  --top N      Number of methods to show, default 20");
+            System.out.println("  --sort self|total  Order by self (default) or total value");
+            System.out.println("  --json       Produce JSON instead of text");
+            System.out.println("  --alloc      Allocation profile");
+            System.out.println("  --lock       Lock contention profile");
+            System.out.println("  --total      Accumulate the total value (time, bytes, etc.)");
+            System.out.println("  --lines      Aggregate by source lines instead of methods");
+            System.exit(1);
+        }
+
+        HashSet<String> options = new HashSet<>(Arrays.asList(args));
+        boolean total = options.contains("--total");
+        Class<? extends Event> eventClass;
+        String units;
+        if (options.contains("--alloc")) {
+            eventClass = AllocationSample.class;
+            units = total ? "bytes" : "samples";
+        } else if (options.contains("--lock")) {
+            eventClass = ContendedLock.class;
+            units = total ? "ns" : "samples";
+        } else {
+            eventClass = ExecutionSample.class;
+            units = "samples";
+        }
+
+        try (JfrReader jfr = new JfrReader(input)) {
+            jfr2flat flat = new jfr2flat(jfr);
+            flat.convert(total, options.contains("--lines"), eventClass);
+
+            if (output == null) {
+                flat.dump(System.out, top, sortBySelf, options.contains("--json"), units);
+            } else {
+                try (PrintStream out = new PrintStream(new FileOutputStream(output), false, "UTF-8")) {
+                    flat.dump(out, top, sortBySelf, options.contains("--json"), units);
+                }
+            }
+        }
+    }
+}
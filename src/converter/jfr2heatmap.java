@@ -0,0 +1,393 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import one.jfr.CounterMap;
+import one.jfr.JfrReader;
+import one.jfr.event.AllocationSample;
+import one.jfr.event.ContendedLock;
+import one.jfr.event.Event;
+import one.jfr.event.ExecutionSample;
+import one.jfr.event.GroupIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Converts .jfr output produced by async-profiler to an HTML heatmap of samples
+ * over time. Each column of the heatmap is one second split into fixed-size buckets.
+ * Selecting a range of buckets in the browser shows a Flame Graph for that range only.
+ */
+public class jfr2heatmap {
+
+    private final JfrReader jfr;
+    private final GroupIndex groups = new GroupIndex();
+    private final CounterMap samples = new CounterMap();
+    private int bucketMs;
+    private long bucketCount;
+
+    public jfr2heatmap(JfrReader jfr) {
+        this.jfr = jfr;
+    }
+
+    /**
+     * @param bucketMs must divide 1000, so that every column of the heatmap is exactly one second
+     */
+    public void convert(boolean total, int bucketMs, Class<? extends Event> eventClass) throws IOException {
+        if (bucketMs <= 0 || 1000 % bucketMs != 0) {
+            throw new IllegalArgumentException("Bucket size must divide 1000 ms: " + bucketMs);
+        }
+        this.bucketMs = bucketMs;
+
+        double ticksPerBucket = jfr.ticksPerSec * bucketMs / 1000.0;
+        double ticksToNanos = 1e9 / jfr.ticksPerSec;
+        boolean scale = total && eventClass == ContendedLock.class && ticksToNanos != 1.0;
+
+        // Counts are stored sparsely: one counter per non-empty (bucket, stack) pair
+        for (Event event; (event = jfr.readEvent(eventClass)) != null; ) {
+            long bucket = Math.max(0, (long) ((event.time - jfr.startTicks) / ticksPerBucket));
+            long value = total ? (scale ? (long) (event.value() * ticksToNanos) : event.value()) : 1;
+            samples.add(bucket << 32 | (groups.indexOf(event) + 1), value);
+            bucketCount = Math.max(bucketCount, bucket + 1);
+        }
+    }
+
+    public void dump(PrintStream out, String title, boolean lines, boolean bci) {
+        jfr2flame resolver = new jfr2flame(jfr);
+        Map<String, Integer> frameIds = new HashMap<>();
+        StringBuilder frames = new StringBuilder();
+        StringBuilder types = new StringBuilder();
+
+        out.print(HEADER
+                .replace("${title}", title)
+                .replace("${bucketMs}", Integer.toString(bucketMs))
+                .replace("${rows}", Integer.toString(1000 / bucketMs))
+                .replace("${buckets}", Long.toString(bucketCount)));
+
+        // Frame names are deduplicated; stacks refer to them by index, root first
+        out.print("const stacks = [");
+        for (int i = 0; i < groups.size(); i++) {
+            String[] trace = resolver.getTrace(groups.get(i), false, lines, bci);
+            out.print(i == 0 ? "\n[" : ",\n[");
+            if (trace != null) {
+                for (int j = 0; j < trace.length; j++) {
+                    Integer id = frameIds.get(trace[j]);
+                    if (id == null) {
+                        frameIds.put(trace[j], id = frameIds.size());
+                        frames.append(id == 0 ? "'" : ",'").append(escape(FlameGraph.stripSuffix(trace[j]))).append('\'');
+                        types.append(id == 0 ? "" : ",").append(FlameGraph.frameType(trace[j]));
+                    }
+                    out.print(j == 0 ? id.toString() : "," + id);
+                }
+            }
+            out.print(']');
+        }
+        out.println("];");
+        out.println("const frames = [" + frames + "];");
+        out.println("const types = [" + types + "];");
+
+        long[] keys = samples.sortedKeys();
+        long prevBucket = -1;
+        for (long key : keys) {
+            long bucket = key >>> 32;
+            if (bucket != prevBucket) {
+                out.print(prevBucket < 0 ? "b(" : "]);\nb(");
+                out.print(bucket + ",[");
+                prevBucket = bucket;
+            } else {
+                out.print(',');
+            }
+            out.print(((int) key - 1) + "," + samples.get(key));
+        }
+        if (prevBucket >= 0) {
+            out.println("]);");
+        }
+
+        out.print(FOOTER);
+    }
+
+    private static String escape(String s) {
+        if (s.indexOf('\\') >= 0) s = s.replace("\\", "\\\\");
+        if (s.indexOf('\'') >= 0) s = s.replace("'", "\\'");
+        if (s.indexOf('<') >= 0) s = s.replace("<", "\\x3c");
+        return s;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String input = null;
+        String output = null;
+        String title = null;
+        int bucketMs = 20;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--bucket")) {
+                bucketMs = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--title")) {
+                title = args[++i];
+            } else if (!arg.startsWith("--")) {
+                if (input == null) {
+                    input = arg;
+                } else {
+                    output = arg;
+                }
+            }
+        }
+
+        if (input == null || bucketMs <= 0 || 1000 % bucketMs != 0) {
+            System.out.println("Usage: java " + jfr2heatmap.class.getName() + " [options] input.jfr [output.html]");
+            System.out.println();
+            System.out.println("Options:");
+            System.out.println("  --bucket MS  Time bucket size in milliseconds, a divisor of 1000, default 20");
+            System.out.println("  --title TITLE");
+            System.out.println("  --alloc      Allocation heatmap");
+            System.out.println("  --lock       Lock contention heatmap");
+            System.out.println("  --total      Accumulate the total value (time, bytes, etc.)");
+            System.out.println("  --lines      Show line numbers");
+            System.out.println("  --bci        Show bytecode indices");
+            System.exit(1);
+        }
+
+        HashSet<String> options = new HashSet<>(Arrays.asList(args));
+        Class<? extends Event> eventClass;
+        if (options.contains("--alloc")) {
+            eventClass = AllocationSample.class;
+        } else if (options.contains("--lock")) {
+            eventClass = ContendedLock.class;
+        } else {
+            eventClass = ExecutionSample.class;
+        }
+
+        if (title == null) {
+            title = eventClass == AllocationSample.class ? "Allocation heatmap"
+                    : eventClass == ContendedLock.class ? "Lock heatmap" : "CPU heatmap";
+        }
+        title = title.replace("&", "&amp;").replace("<", "&lt;");
+
+        try (JfrReader jfr = new JfrReader(input)) {
+            jfr2heatmap heatmap = new jfr2heatmap(jfr);
+            heatmap.convert(options.contains("--total"), bucketMs, eventClass);
+
+            if (output == null) {
+                heatmap.dump(System.out, title, options.contains("--lines"), options.contains("--bci"));
+            } else {
+                try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(output), 32768);
+                     PrintStream out = new PrintStream(bos, false, "UTF-8")) {
+                    heatmap.dump(out, title, options.contains("--lines"), options.contains("--bci"));
+                }
+            }
+        }
+    }
+
+    private static final String HEADER = "<!DOCTYPE html>\n" +
+            "<html lang='en'>\n" +
+            "<head>\n" +
+            "<meta charset='utf-8'>\n" +
+            "<style>\n" +
+            "\tbody {margin: 0; padding: 10px; background-color: #ffffff}\n" +
+            "\th1 {margin: 5px 0 0 0; font-size: 18px; font-weight: normal; text-align: center}\n" +
+            "\tp {margin: 5px 0 5px 0}\n" +
+            "\t#map {overflow-x: auto; padding-bottom: 5px}\n" +
+            "\t#status {overflow: hidden; white-space: nowrap}\n" +
+            "</style>\n" +
+            "</head>\n" +
+            "<body style='font: 12px Verdana, sans-serif'>\n" +
+            "<h1>${title}</h1>\n" +
+            "<p>Drag across the heatmap to select a time range. Each column is one second, each cell is ${bucketMs} ms.</p>\n" +
+            "<div id='map'><canvas id='heatmap'></canvas></div>\n" +
+            "<p id='range'>&nbsp;</p>\n" +
+            "<canvas id='canvas' style='width: 100%'></canvas>\n" +
+            "<p id='status'>&nbsp;</p>\n" +
+            "<script>\n" +
+            "\t// Copyright 2021 Andrei Pangin\n" +
+            "\t// Licensed under the Apache License, Version 2.0.\n" +
+            "\t'use strict';\n" +
+            "\tconst bucketMs = ${bucketMs};\n" +
+            "\tconst rows = ${rows};\n" +
+            "\tconst buckets = new Array(${buckets});\n" +
+            "\tfunction b(i, data) {\n" +
+            "\t\tbuckets[i] = data;\n" +
+            "\t}\n";
+
+    private static final String FOOTER = "" +
+            "\tconst cellW = 8, cellH = 6;\n" +
+            "\tconst palette = [[0x50e150, 30, 30, 30], [0x50bebe, 30, 30, 30], [0xe17d00, 30, 30, 0], [0xc8c83c, 30, 30, 10], [0xe15a5a, 30, 40, 40]];\n" +
+            "\tconst status = document.getElementById('status');\n" +
+            "\tconst heatmap = document.getElementById('heatmap');\n" +
+            "\tconst hc = heatmap.getContext('2d');\n" +
+            "\tconst canvas = document.getElementById('canvas');\n" +
+            "\tconst c = canvas.getContext('2d');\n" +
+            "\tconst canvasWidth = canvas.offsetWidth;\n" +
+            "\n" +
+            "\tconst sums = new Array(buckets.length).fill(0);\n" +
+            "\tlet max = 1;\n" +
+            "\tfor (let i = 0; i < buckets.length; i++) {\n" +
+            "\t\tconst data = buckets[i];\n" +
+            "\t\tif (data) for (let j = 1; j < data.length; j += 2) sums[i] += data[j];\n" +
+            "\t\tmax = Math.max(max, sums[i]);\n" +
+            "\t}\n" +
+            "\n" +
+            "\theatmap.width = Math.max(Math.ceil(buckets.length / rows), 1) * cellW;\n" +
+            "\theatmap.height = rows * cellH;\n" +
+            "\n" +
+            "\tlet selFrom = -1, selTo = -1, dragging = false;\n" +
+            "\n" +
+            "\tfunction drawHeatmap() {\n" +
+            "\t\thc.fillStyle = '#ffffff';\n" +
+            "\t\thc.fillRect(0, 0, heatmap.width, heatmap.height);\n" +
+            "\t\tconst lo = Math.min(selFrom, selTo), hi = Math.max(selFrom, selTo);\n" +
+            "\t\tfor (let i = 0; i < buckets.length; i++) {\n" +
+            "\t\t\tconst x = Math.floor(i / rows) * cellW, y = (i % rows) * cellH;\n" +
+            "\t\t\tconst v = Math.round(255 * (1 - Math.sqrt(sums[i] / max)));\n" +
+            "\t\t\tconst selected = i >= lo && i <= hi && lo >= 0;\n" +
+            "\t\t\thc.fillStyle = selected ? 'rgb(' + v + ',' + v + ',255)' : 'rgb(255,' + v + ',' + v + ')';\n" +
+            "\t\t\thc.fillRect(x, y, cellW - 1, cellH - 1);\n" +
+            "\t\t}\n" +
+            "\t}\n" +
+            "\n" +
+            "\tfunction cellAt(e) {\n" +
+            "\t\tconst col = Math.floor(e.offsetX / cellW), row = Math.floor(e.offsetY / cellH);\n" +
+            "\t\treturn Math.max(0, Math.min(col * rows + Math.min(row, rows - 1), buckets.length - 1));\n" +
+            "\t}\n" +
+            "\n" +
+            "\tfunction time(i) {\n" +
+            "\t\treturn (i * bucketMs / 1000).toFixed(3) + ' s';\n" +
+            "\t}\n" +
+            "\n" +
+            "\theatmap.onmousedown = function(e) {\n" +
+            "\t\tselFrom = selTo = cellAt(e);\n" +
+            "\t\tdragging = true;\n" +
+            "\t\tdrawHeatmap();\n" +
+            "\t}\n" +
+            "\n" +
+            "\theatmap.onmousemove = function(e) {\n" +
+            "\t\tconst i = cellAt(e);\n" +
+            "\t\tstatus.textContent = time(i) + ': ' + sums[i] + ' samples';\n" +
+            "\t\tif (dragging && i !== selTo) {\n" +
+            "\t\t\tselTo = i;\n" +
+            "\t\t\tdrawHeatmap();\n" +
+            "\t\t}\n" +
+            "\t}\n" +
+            "\n" +
+            "\twindow.onmouseup = function() {\n" +
+            "\t\tif (dragging) {\n" +
+            "\t\t\tdragging = false;\n" +
+            "\t\t\tconst lo = Math.min(selFrom, selTo), hi = Math.max(selFrom, selTo);\n" +
+            "\t\t\tdocument.getElementById('range').textContent = 'Selected ' + time(lo) + ' - ' + time(hi + 1);\n" +
+            "\t\t\tbuildFlame(lo, hi);\n" +
+            "\t\t}\n" +
+            "\t}\n" +
+            "\n" +
+            "\tlet levels, flameRoot, px;\n" +
+            "\n" +
+            "\tfunction buildFlame(from, to) {\n" +
+            "\t\tconst root = {frame: -1, total: 0, children: new Map()};\n" +
+            "\t\tfor (let i = from; i <= to; i++) {\n" +
+            "\t\t\tconst data = buckets[i];\n" +
+            "\t\t\tif (!data) continue;\n" +
+            "\t\t\tfor (let j = 0; j < data.length; j += 2) {\n" +
+            "\t\t\t\tconst n = data[j + 1];\n" +
+            "\t\t\t\tlet node = root;\n" +
+            "\t\t\t\tnode.total += n;\n" +
+            "\t\t\t\tfor (const f of stacks[data[j]]) {\n" +
+            "\t\t\t\t\tlet child = node.children.get(f);\n" +
+            "\t\t\t\t\tif (!child) node.children.set(f, child = {frame: f, total: 0, children: new Map()});\n" +
+            "\t\t\t\t\tchild.total += n;\n" +
+            "\t\t\t\t\tnode = child;\n" +
+            "\t\t\t\t}\n" +
+            "\t\t\t}\n" +
+            "\t\t}\n" +
+            "\n" +
+            "\t\tlevels = [];\n" +
+            "\t\tlayout(root, 0, 0);\n" +
+            "\t\tcanvas.style.height = (levels.length * 16) + 'px';\n" +
+            "\t\tcanvas.width = canvasWidth * (devicePixelRatio || 1);\n" +
+            "\t\tcanvas.height = levels.length * 16 * (devicePixelRatio || 1);\n" +
+            "\t\tif (devicePixelRatio) c.scale(devicePixelRatio, devicePixelRatio);\n" +
+            "\t\tc.font = document.body.style.font;\n" +
+            "\t\trenderFlame(levels[0][0]);\n" +
+            "\t}\n" +
+            "\n" +
+            "\tfunction layout(node, level, left) {\n" +
+            "\t\tconst p = node.frame < 0 ? palette[4] : palette[types[node.frame]];\n" +
+            "\t\tconst v = Math.random();\n" +
+            "\t\tconst color = '#' + (p[0] + ((p[1] * v) << 16 | (p[2] * v) << 8 | (p[3] * v))).toString(16);\n" +
+            "\t\t(levels[level] || (levels[level] = [])).push({level: level, left: left, width: node.total, color: color,\n" +
+            "\t\t\ttitle: node.frame < 0 ? 'all' : frames[node.frame]});\n" +
+            "\t\tconst children = Array.from(node.children.values());\n" +
+            "\t\tchildren.sort(function(a, b) { return frames[a.frame] < frames[b.frame] ? -1 : 1; });\n" +
+            "\t\tfor (const child of children) {\n" +
+            "\t\t\tlayout(child, level + 1, left);\n" +
+            "\t\t\tleft += child.total;\n" +
+            "\t\t}\n" +
+            "\t}\n" +
+            "\n" +
+            "\tfunction renderFlame(newRoot) {\n" +
+            "\t\tflameRoot = newRoot;\n" +
+            "\t\tpx = canvasWidth / Math.max(flameRoot.width, 1);\n" +
+            "\t\tconst x0 = flameRoot.left, x1 = x0 + flameRoot.width;\n" +
+            "\t\tconst height = levels.length * 16;\n" +
+            "\t\tc.fillStyle = '#ffffff';\n" +
+            "\t\tc.fillRect(0, 0, canvasWidth, height);\n" +
+            "\t\tfor (let h = 0; h < levels.length; h++) {\n" +
+            "\t\t\tconst y = height - (h + 1) * 16;\n" +
+            "\t\t\tfor (const f of levels[h]) {\n" +
+            "\t\t\t\tif (f.left >= x1 || f.left + f.width <= x0) continue;\n" +
+            "\t\t\t\tc.fillStyle = f.color;\n" +
+            "\t\t\t\tc.fillRect((f.left - x0) * px, y, f.width * px, 15);\n" +
+            "\t\t\t\tif (f.width * px >= 21) {\n" +
+            "\t\t\t\t\tconst chars = Math.floor(f.width * px / 7);\n" +
+            "\t\t\t\t\tconst title = f.title.length <= chars ? f.title : f.title.substring(0, chars - 2) + '..';\n" +
+            "\t\t\t\t\tc.fillStyle = '#000000';\n" +
+            "\t\t\t\t\tc.fillText(title, Math.max(f.left - x0, 0) * px + 3, y + 12, f.width * px - 6);\n" +
+            "\t\t\t\t}\n" +
+            "\t\t\t\tif (h < flameRoot.level) {\n" +
+            "\t\t\t\t\tc.fillStyle = 'rgba(255, 255, 255, 0.5)';\n" +
+            "\t\t\t\t\tc.fillRect((f.left - x0) * px, y, f.width * px, 15);\n" +
+            "\t\t\t\t}\n" +
+            "\t\t\t}\n" +
+            "\t\t}\n" +
+            "\t}\n" +
+            "\n" +
+            "\tfunction frameAt(e) {\n" +
+            "\t\tconst h = Math.floor((levels.length * 16 - e.offsetY) / 16);\n" +
+            "\t\tconst x = e.offsetX / px + flameRoot.left;\n" +
+            "\t\tif (!levels || h < 0 || h >= levels.length) return null;\n" +
+            "\t\tfor (const f of levels[h]) {\n" +
+            "\t\t\tif (x >= f.left && x < f.left + f.width) return f;\n" +
+            "\t\t}\n" +
+            "\t\treturn null;\n" +
+            "\t}\n" +
+            "\n" +
+            "\tcanvas.onmousemove = function(e) {\n" +
+            "\t\tconst f = levels && frameAt(e);\n" +
+            "\t\tcanvas.style.cursor = f ? 'pointer' : '';\n" +
+            "\t\tstatus.textContent = f ? f.title + ' (' + f.width + ' samples, ' +\n" +
+            "\t\t\t(100 * f.width / Math.max(levels[0][0].width, 1)).toFixed(2) + '%)' : '\\xa0';\n" +
+            "\t}\n" +
+            "\n" +
+            "\tcanvas.onclick = function(e) {\n" +
+            "\t\tconst f = levels && frameAt(e);\n" +
+            "\t\tif (f) renderFlame(f);\n" +
+            "\t}\n" +
+            "\n" +
+            "\tdrawHeatmap();\n" +
+            "</script></body></html>\n";
+}
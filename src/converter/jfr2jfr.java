@@ -0,0 +1,133 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import one.jfr.JfrReader;
+import one.jfr.JfrWriter;
+import one.jfr.event.EventType;
+import one.jfr.event.GenericEvent;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Copies a slice of a .jfr recording to a smaller .jfr file:
+ * only events in the given time range, of the given threads and types are kept,
+ * along with the stack traces, methods, classes and symbols they refer to.
+ */
+public class jfr2jfr implements JfrWriter.Filter {
+    private final JfrReader jfr;
+    private final long fromTicks;
+    private final long toTicks;
+    private final Pattern thread;
+    private final Set<String> types;
+
+    private EventType lastType;
+    private boolean lastTypeAccepted;
+    private boolean lastTypeHasStack;
+
+    /**
+     * @param from   seconds since the recording start, inclusive
+     * @param to     seconds since the recording start, exclusive
+     * @param thread thread name pattern, or null for all threads
+     * @param types  names of event types to keep, or null for all types
+     */
+    public jfr2jfr(JfrReader jfr, double from, double to, String thread, Set<String> types) {
+        this.jfr = jfr;
+        this.fromTicks = jfr.startTicks + (long) (from * jfr.ticksPerSec);
+        this.toTicks = Double.isInfinite(to) ? Long.MAX_VALUE : jfr.startTicks + (long) (to * jfr.ticksPerSec);
+        this.thread = thread == null ? null : Pattern.compile(thread);
+        this.types = types;
+    }
+
+    // Time and thread filters apply to events with stack traces only:
+    // settings and system information are kept, so that the output remains a complete recording
+    @Override
+    public boolean accept(GenericEvent event) {
+        if (event.type != lastType) {
+            lastType = event.type;
+            lastTypeAccepted = types == null || types.contains(event.type.name);
+            lastTypeHasStack = event.type.indexOf("stackTrace") >= 0;
+        }
+
+        if (!lastTypeAccepted) {
+            return false;
+        }
+        if (!lastTypeHasStack) {
+            return true;
+        }
+        if (event.time < fromTicks || event.time >= toTicks) {
+            return false;
+        }
+        if (thread != null) {
+            String threadName = jfr.threads.get(event.tid);
+            return threadName != null && thread.matcher(threadName).find();
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String input = null;
+        String output = null;
+        double from = 0;
+        double to = Double.POSITIVE_INFINITY;
+        String thread = null;
+        Set<String> types = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--from")) {
+                from = Double.parseDouble(args[++i]);
+            } else if (arg.equals("--to")) {
+                to = Double.parseDouble(args[++i]);
+            } else if (arg.equals("--thread")) {
+                thread = thread == null ? args[++i] : thread + '|' + args[++i];
+            } else if (arg.equals("--event")) {
+                if (types == null) {
+                    types = new HashSet<>();
+                }
+                for (String type : args[++i].split(",")) {
+                    types.add(type.contains(".") ? type : "jdk." + type);
+                }
+            } else if (!arg.startsWith("--")) {
+                if (input == null) {
+                    input = arg;
+                } else {
+                    output = arg;
+                }
+            }
+        }
+
+        if (input == null || output == null) {
+            System.out.println("Usage: java " + jfr2jfr.class.getName() + " [options] input.jfr output.jfr");
+            System.out.println();
+            System.out.println("Options:");
+            System.out.println("  --from SEC     Keep samples starting from this time since the recording start");
+            System.out.println("  --to SEC       Keep samples before this time since the recording start");
+            System.out.println("  --thread REGEX Keep samples of matching threads; may be repeated");
+            System.out.println("  --event TYPES  Keep only events of the comma separated types, e.g. ExecutionSample");
+            System.exit(1);
+        }
+
+        long startTime = System.nanoTime();
+        try (JfrReader jfr = new JfrReader(input);
+             JfrWriter writer = new JfrWriter(output)) {
+            writer.copy(jfr, new jfr2jfr(jfr, from, to, thread, types));
+
+            long endTime = System.nanoTime();
+            System.out.println("Wrote " + writer.eventsWritten() + " events in " + (endTime - startTime) / 1e9 + " s");
+        }
+    }
+}
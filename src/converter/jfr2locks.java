@@ -0,0 +1,191 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import one.jfr.Dictionary;
+import one.jfr.Histogram;
+import one.jfr.JfrReader;
+import one.jfr.StackTrace;
+import one.jfr.event.ContendedLock;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Converts lock contention events from a .jfr file to a latency report:
+ * log-linear histograms of wait durations per monitor class and per stack trace,
+ * separately for jdk.JavaMonitorEnter and jdk.ThreadPark events.
+ */
+public class jfr2locks {
+    private static final String[] TYPE_NAMES = {"JavaMonitorEnter", "ThreadPark"};
+
+    private final JfrReader jfr;
+    private final jfr2flame names;
+    private final Histogram[] totals = {new Histogram(), new Histogram()};
+    private final Dictionary<Histogram> byClass = new Dictionary<>();
+    private final Dictionary<Histogram> byStack = new Dictionary<>();
+
+    public jfr2locks(JfrReader jfr) {
+        this.jfr = jfr;
+        this.names = new jfr2flame(jfr);
+    }
+
+    public void convert() throws IOException {
+        double ticksToNanos = 1e9 / jfr.ticksPerSec;
+        for (ContendedLock event; (event = jfr.readEvent(ContendedLock.class)) != null; ) {
+            long duration = (long) (event.duration * ticksToNanos);
+            int type = event.park ? 1 : 0;
+            totals[type].record(duration);
+            histogram(byClass, event.classId, type).record(duration);
+            histogram(byStack, event.stackTraceId, type).record(duration);
+        }
+    }
+
+    // The lowest bits hold the event type; the key is never zero
+    private static Histogram histogram(Dictionary<Histogram> map, int id, int type) {
+        long key = (id & 0xffffffffL) << 2 | (type + 1);
+        Histogram h = map.get(key);
+        if (h == null) {
+            map.put(key, h = new Histogram());
+        }
+        return h;
+    }
+
+    public void dump(PrintStream out, int top, int depth) {
+        Histogram all = new Histogram();
+        all.add(totals[0]);
+        all.add(totals[1]);
+
+        out.println("Lock contention latency, microseconds");
+        out.println();
+        printHeader(out, "Event type");
+        printRow(out, all, "All");
+        for (int type = 0; type < totals.length; type++) {
+            if (totals[type].count() > 0) {
+                printRow(out, totals[type], TYPE_NAMES[type]);
+            }
+        }
+
+        out.println();
+        printHeader(out, "Monitor class");
+        for (Entry e : topEntries(byClass, top)) {
+            String className = names.getClassName(e.id);
+            printRow(out, e.histogram, (className == null ? "unknown" : className) + " (" + TYPE_NAMES[e.type] + ')');
+        }
+
+        out.println();
+        printHeader(out, "Stack trace");
+        for (Entry e : topEntries(byStack, top)) {
+            printRow(out, e.histogram, TYPE_NAMES[e.type]);
+            StackTrace stackTrace = jfr.stackTraces.get(e.id);
+            if (stackTrace != null) {
+                long[] methods = stackTrace.methods;
+                for (int i = 0; i < methods.length && i < depth; i++) {
+                    out.println("      " + names.getMethodName(methods[i]));
+                }
+                if (methods.length > depth) {
+                    out.println("      ...");
+                }
+            }
+        }
+    }
+
+    private static List<Entry> topEntries(Dictionary<Histogram> map, int top) {
+        final List<Entry> list = new ArrayList<>();
+        map.forEach(new Dictionary.Visitor<Histogram>() {
+            @Override
+            public void visit(long key, Histogram value) {
+                list.add(new Entry((int) (key >>> 2), (int) (key & 3) - 1, value));
+            }
+        });
+
+        Collections.sort(list, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return Long.compare(e2.histogram.total(), e1.histogram.total());
+            }
+        });
+        return list.size() > top ? list.subList(0, top) : list;
+    }
+
+    private static void printHeader(PrintStream out, String title) {
+        out.println(String.format("%10s %12s %10s %10s %10s %10s  %s", "count", "total", "p50", "p99", "p999", "max", title));
+    }
+
+    private static void printRow(PrintStream out, Histogram h, String title) {
+        out.println(String.format("%10d %12d %10d %10d %10d %10d  %s", h.count(), h.total() / 1000,
+                h.percentile(0.5) / 1000, h.percentile(0.99) / 1000, h.percentile(0.999) / 1000, h.max() / 1000, title));
+    }
+
+    public static void main(String[] args) throws Exception {
+        String input = null;
+        String output = null;
+        int top = 20;
+        int depth = 5;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--top")) {
+                top = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--depth")) {
+                depth = Integer.parseInt(args[++i]);
+            } else if (!arg.startsWith("--")) {
+                if (input == null) {
+                    input = arg;
+                } else {
+                    output = arg;
+                }
+            }
+        }
+
+        if (input == null) {
+            System.out.println("Usage: java " + jfr2locks.class.getName() + " [options] input.jfr [output.txt]");
+            System.out.println();
+            System.out.println("Options:");
+            System.out.println("  --top N      Number of monitor classes and stacks to show, default 20");
+            System.out.println("  --depth N    Number of frames to show for each stack, default 5");
+            System.exit(1);
+        }
+
+        try (JfrReader jfr = new JfrReader(input)) {
+            jfr2locks locks = new jfr2locks(jfr);
+            locks.convert();
+
+            if (output == null) {
+                locks.dump(System.out, top, depth);
+            } else {
+                try (PrintStream out = new PrintStream(new FileOutputStream(output), false, "UTF-8")) {
+                    locks.dump(out, top, depth);
+                }
+            }
+        }
+    }
+
+    static class Entry {
+        final int id;
+        final int type;
+        final Histogram histogram;
+
+        Entry(int id, int type, Histogram histogram) {
+            this.id = id;
+            this.type = type;
+            this.histogram = histogram;
+        }
+    }
+}
@@ -20,6 +20,7 @@ import one.jfr.MethodRef;
 import one.jfr.StackTrace;
 import one.jfr.event.Event;
 import one.jfr.event.EventAggregator;
+import one.jfr.event.EventSorter;
 import one.jfr.event.ExecutionSample;
 import one.proto.Proto;
 
@@ -28,7 +29,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.List;
 
 /**
  * Converts .jfr output produced by async-profiler to nflxprofile format
@@ -42,37 +42,63 @@ public class jfr2nflx {
     private static final byte[] UNKNOWN = "[unknown]".getBytes();
 
     private final JfrReader jfr;
-    private final List<ExecutionSample> samples;
+    private final EventSorter samples;
 
     public jfr2nflx(JfrReader jfr) throws IOException {
+        this(jfr, 0);
+    }
+
+    /**
+     * @param memoryLimit how many bytes of samples to sort in heap before spilling to disk, 0 for unlimited
+     */
+    public jfr2nflx(JfrReader jfr, long memoryLimit) throws IOException {
         this.jfr = jfr;
-        this.samples = jfr.readAllEvents(ExecutionSample.class);
+        this.samples = new EventSorter(memoryLimit);
+        for (ExecutionSample sample; (sample = jfr.readEvent(ExecutionSample.class)) != null; ) {
+            samples.add(sample);
+        }
     }
 
     public void dump(OutputStream out) throws IOException {
         long startTime = System.nanoTime();
 
-        int size = samples.size();
-        long durationTicks = size == 0 ? 0 : samples.get(size - 1).time - jfr.startTicks + 1;
+        // Samples, deltas and tids are packed in a single pass over the time-ordered stream
+        Proto packedSamples = new Proto(10000);
+        Proto packedDeltas = new Proto(10000);
+        Proto packedTids = new Proto(10000);
+        EventAggregator agg = new EventAggregator(false, false);
+
+        double ticksPerSec = jfr.ticksPerSec;
+        long prevTime = jfr.startTicks;
+        boolean empty = true;
+        try {
+            for (Event sample; (sample = samples.next()) != null; ) {
+                packedSamples.writeInt(sample.stackTraceId);
+                packedDeltas.writeDouble((sample.time - prevTime) / ticksPerSec);
+                packedTids.writeInt(sample.tid);
+                agg.collect(sample);
+                prevTime = sample.time;
+                empty = false;
+            }
+        } finally {
+            samples.close();
+        }
+
+        long durationTicks = empty ? 0 : prevTime - jfr.startTicks + 1;
 
         final Proto profile = new Proto(200000)
                 .field(1, 0.0)
                 .field(2, Math.max(jfr.durationNanos() / 1e9, durationTicks / (double) jfr.ticksPerSec))
-                .field(3, packSamples())
-                .field(4, packDeltas())
+                .field(3, packedSamples)
+                .field(4, packedDeltas)
                 .field(6, "async-profiler")
                 .field(8, new Proto(32).field(1, "has_node_stack").field(2, "true"))
                 .field(8, new Proto(32).field(1, "has_samples_tid").field(2, "true"))
-                .field(11, packTids());
+                .field(11, packedTids);
 
         final Proto nodes = new Proto(10000);
         final Proto node = new Proto(10000);
 
-        EventAggregator agg = new EventAggregator(false, false);
-        for (ExecutionSample sample : samples) {
-            agg.collect(sample);
-        }
-
         // Don't use lambda for faster startup
         agg.forEach(new EventAggregator.Visitor() {
             @Override
@@ -112,33 +138,6 @@ public class jfr2nflx {
         return node;
     }
 
-    private Proto packSamples() {
-        Proto proto = new Proto(10000);
-        for (ExecutionSample sample : samples) {
-            proto.writeInt(sample.stackTraceId);
-        }
-        return proto;
-    }
-
-    private Proto packDeltas() {
-        Proto proto = new Proto(10000);
-        double ticksPerSec = jfr.ticksPerSec;
-        long prevTime = jfr.startTicks;
-        for (ExecutionSample sample : samples) {
-            proto.writeDouble((sample.time - prevTime) / ticksPerSec);
-            prevTime = sample.time;
-        }
-        return proto;
-    }
-
-    private Proto packTids() {
-        Proto proto = new Proto(10000);
-        for (ExecutionSample sample : samples) {
-            proto.writeInt(sample.tid);
-        }
-        return proto;
-    }
-
     private byte[] getMethodName(long methodId) {
         MethodRef method = jfr.methods.get(methodId);
         if (method == null) {
@@ -160,19 +159,32 @@ public class jfr2nflx {
     }
 
     public static void main(String[] args) throws Exception {
-        if (args.length < 2) {
-            System.out.println("Usage: java " + jfr2nflx.class.getName() + " input.jfr output.nflx");
+        String input = null;
+        String output = null;
+        long memoryLimit = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--memlimit")) {
+                memoryLimit = Long.parseLong(args[++i]) * 1024 * 1024;
+            } else if (input == null) {
+                input = args[i];
+            } else {
+                output = args[i];
+            }
+        }
+
+        if (output == null) {
+            System.out.println("Usage: java " + jfr2nflx.class.getName() + " [--memlimit MB] input.jfr output.nflx");
             System.exit(1);
         }
 
-        File dst = new File(args[1]);
+        File dst = new File(output);
         if (dst.isDirectory()) {
-            dst = new File(dst, new File(args[0]).getName().replace(".jfr", ".nflx"));
+            dst = new File(dst, new File(input).getName().replace(".jfr", ".nflx"));
         }
 
-        try (JfrReader jfr = new JfrReader(args[0]);
+        try (JfrReader jfr = new JfrReader(input);
              FileOutputStream out = new FileOutputStream(dst)) {
-            new jfr2nflx(jfr).dump(out);
+            new jfr2nflx(jfr, memoryLimit).dump(out);
         }
     }
 }
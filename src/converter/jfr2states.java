@@ -0,0 +1,196 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import one.jfr.Dictionary;
+import one.jfr.JfrReader;
+import one.jfr.event.ExecutionSample;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Converts a wall clock .jfr recording to a thread state report:
+ * share of each thread state per thread, and per-thread timelines
+ * of the running share, which tells CPU saturation from blocking.
+ */
+public class jfr2states {
+    private static final String RUNNABLE = "STATE_RUNNABLE";
+    private static final char[] LEVELS = " .:-=+*#%@".toCharArray();
+
+    private final JfrReader jfr;
+    private final Dictionary<ThreadStats> threads = new Dictionary<>();
+    private final TreeMap<Integer, String> stateNames = new TreeMap<>();
+    private int runnable = -1;
+    private int buckets;
+
+    public jfr2states(JfrReader jfr) {
+        this.jfr = jfr;
+    }
+
+    public void convert(long intervalMs) throws IOException {
+        for (Map.Entry<Integer, String> entry : jfr.threadStates.entrySet()) {
+            if (entry.getValue().equals(RUNNABLE)) {
+                runnable = entry.getKey();
+            }
+        }
+
+        double ticksPerBucket = jfr.ticksPerSec * intervalMs / 1000.0;
+        for (ExecutionSample event; (event = jfr.readEvent(ExecutionSample.class)) != null; ) {
+            ThreadStats stats = threads.get(event.tid);
+            if (stats == null) {
+                threads.put(event.tid, stats = new ThreadStats(event.tid));
+            }
+
+            int bucket = (int) Math.max(0, (event.time - jfr.startTicks) / ticksPerBucket);
+            stats.add(event.threadState, bucket, event.threadState == runnable);
+            buckets = Math.max(buckets, bucket + 1);
+
+            if (!stateNames.containsKey(event.threadState)) {
+                String name = jfr.threadStates.get(event.threadState);
+                stateNames.put(event.threadState, name == null ? "state=" + event.threadState : name);
+            }
+        }
+    }
+
+    public void dump(PrintStream out, long intervalMs) {
+        final List<ThreadStats> list = new ArrayList<>();
+        threads.forEach(new Dictionary.Visitor<ThreadStats>() {
+            @Override
+            public void visit(long key, ThreadStats value) {
+                list.add(value);
+            }
+        });
+        Collections.sort(list, new Comparator<ThreadStats>() {
+            @Override
+            public int compare(ThreadStats t1, ThreadStats t2) {
+                return Long.compare(t2.samples, t1.samples);
+            }
+        });
+
+        StringBuilder header = new StringBuilder(String.format("%10s", "samples"));
+        for (String name : stateNames.values()) {
+            header.append(String.format(" %14s", name.startsWith("STATE_") ? name.substring(6) : name));
+        }
+        out.println(header.append("  thread"));
+
+        for (ThreadStats stats : list) {
+            StringBuilder sb = new StringBuilder(String.format("%10d", stats.samples));
+            for (int state : stateNames.keySet()) {
+                long count = state < stats.states.length ? stats.states[state] : 0;
+                sb.append(String.format(" %13.2f%%", count * 100.0 / stats.samples));
+            }
+            out.println(sb.append("  ").append(threadName(stats.tid)));
+        }
+
+        out.println();
+        out.println("Running share per " + intervalMs + " ms, from ' ' (0%) to '@' (100%)");
+        for (ThreadStats stats : list) {
+            StringBuilder sb = new StringBuilder(buckets + 2).append('|');
+            for (int i = 0; i < buckets; i++) {
+                long samples = i < stats.timeline.length ? stats.timeline[i] : 0;
+                if (samples == 0) {
+                    sb.append(' ');
+                } else {
+                    long running = stats.running[i];
+                    sb.append(LEVELS[(int) ((running * (LEVELS.length - 1) + samples - 1) / samples)]);
+                }
+            }
+            out.println(sb.append("|  ").append(threadName(stats.tid)));
+        }
+    }
+
+    private String threadName(int tid) {
+        String name = jfr.threads.get(tid);
+        return name == null ? "[tid=" + tid + ']' : name + " tid=" + tid;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String input = null;
+        String output = null;
+        long interval = 1000;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--interval")) {
+                interval = Long.parseLong(args[++i]);
+            } else if (!arg.startsWith("--")) {
+                if (input == null) {
+                    input = arg;
+                } else {
+                    output = arg;
+                }
+            }
+        }
+
+        if (input == null || interval <= 0) {
+            System.out.println("Usage: java " + jfr2states.class.getName() + " [options] input.jfr [output.txt]");
+            System.out.println();
+            System.out.println("Options:");
+            System.out.println("  --interval MS  Timeline resolution, default 1000 ms");
+            System.exit(1);
+        }
+
+        try (JfrReader jfr = new JfrReader(input)) {
+            jfr2states states = new jfr2states(jfr);
+            states.convert(interval);
+
+            if (output == null) {
+                states.dump(System.out, interval);
+            } else {
+                try (PrintStream out = new PrintStream(new FileOutputStream(output), false, "UTF-8")) {
+                    states.dump(out, interval);
+                }
+            }
+        }
+    }
+
+    static class ThreadStats {
+        final int tid;
+        long samples;
+        long[] states = new long[16];
+        long[] timeline = new long[64];
+        long[] running = new long[64];
+
+        ThreadStats(int tid) {
+            this.tid = tid;
+        }
+
+        void add(int state, int bucket, boolean isRunning) {
+            if (state >= states.length) {
+                states = Arrays.copyOf(states, state + 1);
+            }
+            if (bucket >= timeline.length) {
+                int newLength = Math.max(bucket + 1, timeline.length * 2);
+                timeline = Arrays.copyOf(timeline, newLength);
+                running = Arrays.copyOf(running, newLength);
+            }
+
+            samples++;
+            states[state]++;
+            timeline[bucket]++;
+            if (isRunning) {
+                running[bucket]++;
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+import one.jfr.event.EventType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Field layout of one event type compiled from metadata into a flat list of ops,
+ * so that decoding an event is a single loop without lookups.
+ * An ARRAY op is followed by the length of the element program and the program itself;
+ * a CONSTANT op is followed by the index of the referenced type in constantTypes.
+ */
+class EventDecoder {
+    static final byte VARLONG = 0;
+    static final byte FLOAT = 1;
+    static final byte DOUBLE = 2;
+    static final byte BYTE = 3;
+    static final byte STRING = 4;
+    static final byte ARRAY = 5;
+    static final byte CONSTANT = 6;
+
+    private static final int MAX_DEPTH = 16;
+
+    final EventType type;
+    final byte[] ops;
+    final int[] constantTypes;
+    final boolean hasStrings;
+    final int timeSlot;
+    final int threadSlot;
+    final int stackTraceSlot;
+
+    private EventDecoder(EventType type, byte[] ops, int[] constantTypes) {
+        this.type = type;
+        this.ops = ops;
+        this.constantTypes = constantTypes;
+        this.timeSlot = type.indexOf("startTime");
+        this.threadSlot = type.indexOf("eventThread") >= 0 ? type.indexOf("eventThread") : type.indexOf("sampledThread");
+        this.stackTraceSlot = type.indexOf("stackTrace");
+
+        boolean hasStrings = false;
+        for (int i = 0; i < type.fieldCount(); i++) {
+            hasStrings |= type.fieldKind(i) == EventType.STRING;
+        }
+        this.hasStrings = hasStrings;
+    }
+
+    static EventDecoder compile(JfrClass cls, Dictionary<JfrClass> types) {
+        List<String> names = new ArrayList<>();
+        ByteList kinds = new ByteList();
+        ByteList ops = new ByteList();
+        List<Integer> constantTypes = new ArrayList<>();
+        compileFields(cls, "", names, kinds, ops, constantTypes, types, 0);
+
+        int[] constantTypeIds = new int[constantTypes.size()];
+        for (int i = 0; i < constantTypeIds.length; i++) {
+            constantTypeIds[i] = constantTypes.get(i);
+        }
+
+        EventType type = new EventType(cls.id, cls.name, names.toArray(new String[0]), kinds.toArray());
+        return new EventDecoder(type, ops.toArray(), constantTypeIds);
+    }
+
+    // names and kinds are null when compiling array elements, which are skipped rather than stored
+    private static void compileFields(JfrClass cls, String prefix, List<String> names, ByteList kinds,
+                                      ByteList ops, List<Integer> constantTypes, Dictionary<JfrClass> types, int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Too deep nesting of " + cls.name);
+        }
+
+        for (JfrField field : cls.fields) {
+            String name = prefix + field.name;
+            if (field.array) {
+                ByteList element = new ByteList();
+                compileField(field, name, null, null, element, constantTypes, types, depth);
+                if (element.size > 127) {
+                    throw new IllegalArgumentException("Too complex array element in " + cls.name);
+                }
+                ops.add(ARRAY);
+                ops.add((byte) element.size);
+                ops.addAll(element);
+                if (names != null) {
+                    names.add(name);
+                    kinds.add(EventType.LONG);
+                }
+            } else {
+                compileField(field, name, names, kinds, ops, constantTypes, types, depth);
+            }
+        }
+    }
+
+    private static void compileField(JfrField field, String name, List<String> names, ByteList kinds,
+                                     ByteList ops, List<Integer> constantTypes, Dictionary<JfrClass> types, int depth) {
+        JfrClass fieldType = types.get(field.type);
+        String typeName = fieldType != null ? fieldType.name : "";
+
+        if (field.constantPool) {
+            int index = constantTypes.indexOf(field.type);
+            if (index < 0) {
+                if ((index = constantTypes.size()) > 127) {
+                    throw new IllegalArgumentException("Too many constant pool references in " + name);
+                }
+                constantTypes.add(field.type);
+            }
+            ops.add(CONSTANT);
+            ops.add((byte) index);
+            if (names != null) {
+                names.add(name);
+                kinds.add(EventType.LONG);
+            }
+            return;
+        }
+
+        byte op;
+        byte kind = EventType.LONG;
+        switch (typeName) {
+            case "int":
+            case "long":
+            case "short":
+            case "char":
+                op = VARLONG;
+                break;
+            case "byte":
+            case "boolean":
+                op = BYTE;
+                break;
+            case "float":
+                op = FLOAT;
+                kind = EventType.DOUBLE;
+                break;
+            case "double":
+                op = DOUBLE;
+                kind = EventType.DOUBLE;
+                break;
+            case "java.lang.String":
+                op = STRING;
+                kind = EventType.STRING;
+                break;
+            default:
+                if (fieldType == null) {
+                    throw new IllegalArgumentException("Unknown type of field " + name);
+                }
+                compileFields(fieldType, name + '.', names, kinds, ops, constantTypes, types, depth + 1);
+                return;
+        }
+
+        ops.add(op);
+        if (names != null) {
+            names.add(name);
+            kinds.add(kind);
+        }
+    }
+
+    static class ByteList {
+        byte[] array = new byte[16];
+        int size;
+
+        void add(byte b) {
+            if (size == array.length) {
+                array = Arrays.copyOf(array, size * 2);
+            }
+            array[size++] = b;
+        }
+
+        void addAll(ByteList other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.array[i]);
+            }
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(array, size);
+        }
+    }
+}
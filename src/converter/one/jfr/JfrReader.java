@@ -19,30 +19,43 @@ package one.jfr;
 import one.jfr.event.AllocationSample;
 import one.jfr.event.ContendedLock;
 import one.jfr.event.Event;
+import one.jfr.event.EventType;
 import one.jfr.event.ExecutionSample;
+import one.jfr.event.GenericEvent;
 
+import java.io.BufferedInputStream;
 import java.io.Closeable;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Parses JFR output produced by async-profiler.
  */
 public class JfrReader implements Closeable {
-    private static final int BUFFER_SIZE = 2 * 1024 * 1024;
-    private static final int CHUNK_HEADER_SIZE = 68;
+    public static final int BUFFER_SIZE = 2 * 1024 * 1024;
+    static final int CHUNK_HEADER_SIZE = 68;
     private static final int CHUNK_SIGNATURE = 0x464c5200;
+    private static final short GZIP_MAGIC = (short) 0x1f8b;
 
-    private final FileChannel ch;
+    private final ReadableByteChannel ch;
+    private final boolean seekable;
     private ByteBuffer buf;
     private long filePosition;
 
@@ -63,6 +76,16 @@ public class JfrReader implements Closeable {
     public final Map<Integer, String> threadStates = new HashMap<>();
     public final Map<String, String> settings = new HashMap<>();
 
+    // File offsets of the current chunk, its metadata and its last constant pool, used by JfrWriter
+    long chunkStart;
+    long metaPosition;
+    long cpPosition;
+    private int lastEventStart;
+    private int lastEventEnd;
+
+    private final Dictionary<JfrClass> eventClasses = new Dictionary<>();
+    private final Dictionary<EventDecoder> decoders = new Dictionary<>();
+
     private int executionSample;
     private int nativeMethodSample;
     private int allocationInNewTLAB;
@@ -71,10 +94,33 @@ public class JfrReader implements Closeable {
     private int monitorEnter;
     private int threadPark;
     private int activeSetting;
+    // Event types that end with spanId and tag fields of the thread context
+    private final BitSet contextTypes = new BitSet();
 
     public JfrReader(String fileName) throws IOException {
-        this.ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
-        this.buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this(fileName, ByteBuffer.allocateDirect(BUFFER_SIZE));
+    }
+
+    /**
+     * Reads the file using the given buffer, so that the buffer can be reused
+     * when converting many recordings in a row.
+     */
+    public JfrReader(String fileName, ByteBuffer buf) throws IOException {
+        this(openFile(fileName), buf);
+    }
+
+    /**
+     * Reads a recording from a stream, e.g. a GZIPInputStream, without decompressing it to disk.
+     * Each chunk is buffered in memory while it is being read. The stream is closed with the reader.
+     */
+    public JfrReader(InputStream in) throws IOException {
+        this(Channels.newChannel(in), ByteBuffer.allocateDirect(BUFFER_SIZE));
+    }
+
+    private JfrReader(ReadableByteChannel ch, ByteBuffer buf) throws IOException {
+        this.ch = ch;
+        this.seekable = ch instanceof FileChannel;
+        this.buf = buf;
 
         buf.flip();
         ensureBytes(CHUNK_HEADER_SIZE);
@@ -83,6 +129,26 @@ public class JfrReader implements Closeable {
         }
     }
 
+    // Gzip compressed recordings and pipes are read as a stream
+    private static ReadableByteChannel openFile(String fileName) throws IOException {
+        Path path = Paths.get(fileName);
+        if (Files.isRegularFile(path)) {
+            FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            ch.read(magic, 0);
+            if (magic.getShort(0) != GZIP_MAGIC) {
+                return ch;
+            }
+            ch.close();
+        }
+
+        InputStream in = new BufferedInputStream(new FileInputStream(fileName), 65536);
+        in.mark(2);
+        short magic = (short) (in.read() << 8 | in.read());
+        in.reset();
+        return Channels.newChannel(magic == GZIP_MAGIC ? new GZIPInputStream(in, 65536) : in);
+    }
+
     @Override
     public void close() throws IOException {
         ch.close();
@@ -124,15 +190,15 @@ public class JfrReader implements Closeable {
             }
 
             if (type == executionSample || type == nativeMethodSample) {
-                if (cls == null || cls == ExecutionSample.class) return (E) readExecutionSample();
+                if (cls == null || cls == ExecutionSample.class) return (E) readExecutionSample(contextTypes.get(type));
             } else if (type == allocationInNewTLAB) {
-                if (cls == null || cls == AllocationSample.class) return (E) readAllocationSample(true);
+                if (cls == null || cls == AllocationSample.class) return (E) readAllocationSample(true, contextTypes.get(type));
             } else if (type == allocationOutsideTLAB || type == allocationSample) {
-                if (cls == null || cls == AllocationSample.class) return (E) readAllocationSample(false);
+                if (cls == null || cls == AllocationSample.class) return (E) readAllocationSample(false, contextTypes.get(type));
             } else if (type == monitorEnter) {
-                if (cls == null || cls == ContendedLock.class) return (E) readContendedLock(false);
+                if (cls == null || cls == ContendedLock.class) return (E) readContendedLock(false, contextTypes.get(type));
             } else if (type == threadPark) {
-                if (cls == null || cls == ContendedLock.class) return (E) readContendedLock(true);
+                if (cls == null || cls == ContendedLock.class) return (E) readContendedLock(true, contextTypes.get(type));
             } else if (type == activeSetting) {
                 readActiveSetting();
             }
@@ -146,25 +212,212 @@ public class JfrReader implements Closeable {
         return null;
     }
 
-    private ExecutionSample readExecutionSample() {
+    public GenericEvent readGenericEvent() throws IOException {
+        return readGenericEvent(null);
+    }
+
+    /**
+     * Reads the next event of the given type, or of any type if typeName is null,
+     * decoding all its fields according to the recording metadata.
+     * Works for event types without a dedicated Event class, e.g. jdk.CPULoad or user events.
+     */
+    public GenericEvent readGenericEvent(String typeName) throws IOException {
+        while (ensureBytes(CHUNK_HEADER_SIZE)) {
+            int pos = buf.position();
+            int size = getVarint();
+            int type = getVarint();
+
+            if (type == 'L' && buf.getInt(pos) == CHUNK_SIGNATURE) {
+                if (readChunk(pos)) {
+                    continue;
+                }
+                break;
+            }
+
+            EventDecoder decoder = getDecoder(type);
+            if (decoder != null && (typeName == null || typeName.equals(decoder.type.name))) {
+                // Unlike the fixed layouts above, a generic event may be larger than the header
+                if (buf.limit() - pos < size) {
+                    buf.position(pos);
+                    ensureBytes(size);
+                    pos = buf.position();
+                    getVarint();
+                    getVarint();
+                }
+                GenericEvent event = decodeEvent(decoder);
+                buf.position(lastEventEnd = pos + size);
+                lastEventStart = pos;
+                return event;
+            }
+
+            if ((pos += size) <= buf.limit()) {
+                buf.position(pos);
+            } else {
+                seek(filePosition + pos);
+            }
+        }
+        return null;
+    }
+
+    EventDecoder getDecoder(int type) {
+        if (type <= 1) {
+            return null;  // metadata or constant pool
+        }
+
+        EventDecoder decoder = decoders.get(type);
+        if (decoder == null) {
+            JfrClass cls = eventClasses.get(type);
+            if (cls == null) {
+                return null;
+            }
+            decoders.put(type, decoder = EventDecoder.compile(cls, types));
+        }
+        return decoder;
+    }
+
+    // Raw bytes of the event last returned by readGenericEvent, valid until the next read
+    ByteBuffer lastEvent() {
+        ByteBuffer event = buf.duplicate();
+        event.limit(lastEventEnd).position(lastEventStart);
+        return event;
+    }
+
+    // Reads a whole event at the given file offset without moving the current position
+    ByteBuffer readRawEvent(long offset) throws IOException {
+        ByteBuffer header = readRaw(offset, 5);
+        int size = 0;
+        for (int shift = 0; header.hasRemaining(); shift += 7) {
+            byte b = header.get();
+            size |= (b & 0x7f) << shift;
+            if (b >= 0) break;
+        }
+        return readRaw(offset, size);
+    }
+
+    ByteBuffer readRaw(long offset, int size) throws IOException {
+        ByteBuffer result = ByteBuffer.allocate(size);
+        if (seekable) {
+            while (result.hasRemaining() && ((FileChannel) ch).read(result, offset + result.position()) > 0) {
+                // keep reading
+            }
+        } else {
+            // A stream keeps the whole current chunk in the buffer, and the previous one until the next refill
+            long start = offset - filePosition;
+            if (start < 0 || start + size > buf.limit()) {
+                throw new IOException("Offset " + offset + " is outside the current chunk");
+            }
+            ByteBuffer src = buf.duplicate();
+            src.limit((int) start + size).position((int) start);
+            result.put(src);
+        }
+        result.flip();
+        return result;
+    }
+
+    private GenericEvent decodeEvent(EventDecoder decoder) {
+        EventType type = decoder.type;
+        long[] values = new long[type.fieldCount()];
+        String[] strings = decoder.hasStrings ? new String[values.length] : null;
+
+        byte[] ops = decoder.ops;
+        for (int i = 0, slot = 0; i < ops.length; slot++) {
+            byte op = ops[i++];
+            switch (op) {
+                case EventDecoder.STRING:
+                    strings[slot] = getStringField();
+                    break;
+                case EventDecoder.CONSTANT:
+                    i++;
+                    values[slot] = getVarlong();
+                    break;
+                case EventDecoder.ARRAY: {
+                    int length = ops[i++];
+                    int count = getVarint();
+                    for (int j = 0; j < count; j++) {
+                        skipFields(ops, i, i + length);
+                    }
+                    values[slot] = count;
+                    i += length;
+                    break;
+                }
+                default:
+                    values[slot] = getValue(op);
+            }
+        }
+
+        long time = decoder.timeSlot >= 0 ? values[decoder.timeSlot] : 0;
+        int tid = decoder.threadSlot >= 0 ? (int) values[decoder.threadSlot] : 0;
+        int stackTraceId = decoder.stackTraceSlot >= 0 ? (int) values[decoder.stackTraceSlot] : 0;
+        return new GenericEvent(time, tid, stackTraceId, type, values, strings);
+    }
+
+    private void skipFields(byte[] ops, int from, int to) {
+        for (int i = from; i < to; ) {
+            byte op = ops[i++];
+            if (op == EventDecoder.STRING) {
+                getStringField();
+            } else if (op == EventDecoder.CONSTANT) {
+                i++;
+                getVarlong();
+            } else if (op == EventDecoder.ARRAY) {
+                int length = ops[i++];
+                for (int count = getVarint(); count > 0; count--) {
+                    skipFields(ops, i, i + length);
+                }
+                i += length;
+            } else {
+                getValue(op);
+            }
+        }
+    }
+
+    // Floating point values are returned as raw bits
+    private long getValue(byte op) {
+        switch (op) {
+            case EventDecoder.FLOAT:
+                return Double.doubleToRawLongBits(buf.getFloat());
+            case EventDecoder.DOUBLE:
+                return Double.doubleToRawLongBits(buf.getDouble());
+            case EventDecoder.BYTE:
+                return buf.get();
+            default:
+                return getVarlong();
+        }
+    }
+
+    // Strings in events may also refer to the string constant pool, which is not kept
+    private String getStringField() {
+        if (buf.get(buf.position()) == 2) {
+            buf.get();
+            getVarlong();
+            return null;
+        }
+        return getString();
+    }
+
+    private ExecutionSample readExecutionSample(boolean context) {
         long time = getVarlong();
         int tid = getVarint();
         int stackTraceId = getVarint();
         int threadState = getVarint();
-        return new ExecutionSample(time, tid, stackTraceId, threadState);
+        long spanId = context ? getVarlong() : 0;
+        long tag = context ? getVarlong() : 0;
+        return new ExecutionSample(time, tid, stackTraceId, threadState, spanId, tag);
     }
 
-    private AllocationSample readAllocationSample(boolean tlab) {
+    private AllocationSample readAllocationSample(boolean tlab, boolean context) {
         long time = getVarlong();
         int tid = getVarint();
         int stackTraceId = getVarint();
         int classId = getVarint();
         long allocationSize = getVarlong();
         long tlabSize = tlab ? getVarlong() : 0;
-        return new AllocationSample(time, tid, stackTraceId, classId, allocationSize, tlabSize);
+        long spanId = context ? getVarlong() : 0;
+        long tag = context ? getVarlong() : 0;
+        return new AllocationSample(time, tid, stackTraceId, classId, allocationSize, tlabSize, spanId, tag);
     }
 
-    private ContendedLock readContendedLock(boolean hasTimeout) {
+    private ContendedLock readContendedLock(boolean hasTimeout, boolean context) {
         long time = getVarlong();
         long duration = getVarlong();
         int tid = getVarint();
@@ -173,7 +426,9 @@ public class JfrReader implements Closeable {
         if (hasTimeout) getVarlong();
         long until = getVarlong();
         long address = getVarlong();
-        return new ContendedLock(time, tid, stackTraceId, duration, classId);
+        long spanId = context ? getVarlong() : 0;
+        long tag = context ? getVarlong() : 0;
+        return new ContendedLock(time, tid, stackTraceId, duration, classId, hasTimeout, spanId, tag);
     }
 
     private void readActiveSetting() {
@@ -208,12 +463,27 @@ public class JfrReader implements Closeable {
         startTicks = Math.min(startTicks, buf.getLong(pos + 48));
         ticksPerSec = buf.getLong(pos + 56);
 
+        if (!seekable) {
+            // Metadata and constant pools are at the end of the chunk, so the stream needs the whole chunk at once
+            long chunkSize = buf.getLong(pos + 8);
+            buf.position(pos);
+            if (chunkSize > Integer.MAX_VALUE || !ensureBytes((int) chunkSize) || buf.remaining() < chunkSize) {
+                incomplete = true;
+                return false;
+            }
+            pos = buf.position();
+        }
+
         types.clear();
         typesByName.clear();
-
-        long chunkStart = filePosition + pos;
-        readMeta(chunkStart + metaOffset);
-        readConstantPool(chunkStart + cpOffset);
+        eventClasses.clear();
+        decoders.clear();
+
+        chunkStart = filePosition + pos;
+        metaPosition = chunkStart + metaOffset;
+        cpPosition = chunkStart + cpOffset;
+        readMeta(metaPosition);
+        readConstantPool(cpPosition);
         cacheEventTypes();
 
         seek(chunkStart + CHUNK_HEADER_SIZE);
@@ -260,6 +530,8 @@ public class JfrReader implements Closeable {
                 JfrClass type = new JfrClass(attributes);
                 if (!attributes.containsKey("superType")) {
                     types.put(type.id, type);
+                } else if ("jdk.jfr.Event".equals(attributes.get("superType"))) {
+                    eventClasses.put(type.id, type);
                 }
                 typesByName.put(type.name, type);
                 return type;
@@ -440,6 +712,14 @@ public class JfrReader implements Closeable {
         monitorEnter = getTypeId("jdk.JavaMonitorEnter");
         threadPark = getTypeId("jdk.ThreadPark");
         activeSetting = getTypeId("jdk.ActiveSetting");
+
+        contextTypes.clear();
+        for (JfrClass type : typesByName.values()) {
+            int n = type.fields.size();
+            if (n >= 2 && type.fields.get(n - 2).name.equals("spanId") && type.fields.get(n - 1).name.equals("tag")) {
+                contextTypes.set(type.id);
+            }
+        }
     }
 
     private int getTypeId(String typeName) {
@@ -499,8 +779,17 @@ public class JfrReader implements Closeable {
     }
 
     private void seek(long pos) throws IOException {
+        if (!seekable) {
+            long offset = pos - filePosition;
+            if (offset < 0 || offset > buf.limit()) {
+                throw new IOException("Cannot seek outside the current chunk of a stream");
+            }
+            buf.position((int) offset);
+            return;
+        }
+
         filePosition = pos;
-        ch.position(pos);
+        ((FileChannel) ch).position(pos);
         buf.rewind().flip();
     }
 
@@ -509,20 +798,23 @@ public class JfrReader implements Closeable {
             return true;
         }
 
-        filePosition += buf.position();
+        // A stream cannot go back, so bytes of the current chunk are kept for readRaw and seek
+        int keep = seekable ? 0 : buf.position() - (int) (chunkStart - filePosition);
+        filePosition += buf.position() - keep;
+        buf.position(buf.position() - keep);
 
-        if (buf.capacity() < needed) {
-            ByteBuffer newBuf = ByteBuffer.allocateDirect(needed);
+        if (buf.capacity() < needed + keep) {
+            ByteBuffer newBuf = ByteBuffer.allocateDirect(needed + keep);
             newBuf.put(buf);
             buf = newBuf;
         } else {
             buf.compact();
         }
 
-        while (ch.read(buf) > 0 && buf.position() < needed) {
+        while (ch.read(buf) > 0 && buf.position() < needed + keep) {
             // keep reading
         }
-        buf.flip();
-        return buf.limit() > 0;
+        buf.flip().position(keep);
+        return buf.hasRemaining();
     }
 }
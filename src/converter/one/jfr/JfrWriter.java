@@ -0,0 +1,447 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+import one.jfr.event.GenericEvent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Writes a subset of events of a JFR recording to a new file.
+ * Events and metadata are copied as is, chunk by chunk, while constant pools
+ * are rebuilt to contain only the entries reachable from the copied events.
+ */
+public class JfrWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int T_CPOOL = 1;
+    private static final int STRING_CONSTANT = 2;
+
+    private final FileChannel ch;
+    private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+    private long flushedPosition;
+
+    // Output chunk being written, or -1 if none is open
+    private long chunkStart = -1;
+    private long metaPosition;
+    private long startTicks;
+
+    // Input chunk the events are currently copied from
+    private long inputChunk = -1;
+    private long inputCpPosition;
+    private JfrReader in;
+    private Dictionary<JfrClass> types;
+    private Dictionary<Pool> pools;
+    private int stringType;
+
+    private long events;
+
+    public JfrWriter(String fileName) throws IOException {
+        this.ch = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finishChunk();
+            flush();
+        } finally {
+            ch.close();
+        }
+    }
+
+    public long eventsWritten() {
+        return events;
+    }
+
+    /**
+     * Copies all events accepted by the filter from the reader's current position to the end of input.
+     * Every input chunk with at least one accepted event becomes an output chunk.
+     */
+    public void copy(JfrReader in, Filter filter) throws IOException {
+        for (GenericEvent event; (event = in.readGenericEvent()) != null; ) {
+            if (in != this.in || in.chunkStart != inputChunk) {
+                finishChunk();
+                this.in = in;
+                this.inputChunk = in.chunkStart;
+            }
+
+            if (filter.accept(event)) {
+                if (chunkStart < 0) {
+                    startChunk();
+                }
+
+                ByteBuffer raw = in.lastEvent();
+                getVarint(raw);
+                getVarlong(raw);
+                EventDecoder decoder = in.getDecoder(event.type.id);
+                walk(raw, decoder.ops, 0, decoder.ops.length, decoder.constantTypes, true);
+
+                write(in.lastEvent());
+                events++;
+            }
+        }
+        finishChunk();
+    }
+
+    private void startChunk() throws IOException {
+        chunkStart = position();
+        ByteBuffer header = in.readRaw(inputChunk, JfrReader.CHUNK_HEADER_SIZE);
+        startTicks = header.getLong(48);
+        write(header);
+
+        metaPosition = position();
+        write(in.readRawEvent(in.metaPosition));
+
+        // The reader forgets chunk metadata when it moves to the next chunk, so keep a copy
+        final Dictionary<JfrClass> types = new Dictionary<>();
+        in.types.forEach(new Dictionary.Visitor<JfrClass>() {
+            @Override
+            public void visit(long key, JfrClass value) {
+                types.put(key, value);
+            }
+        });
+        this.types = types;
+        this.inputCpPosition = in.cpPosition;
+        JfrClass stringClass = in.typesByName.get("java.lang.String");
+        this.stringType = stringClass != null ? stringClass.id : -1;
+        this.pools = new Dictionary<>();
+        indexConstantPools();
+    }
+
+    private void finishChunk() throws IOException {
+        if (chunkStart < 0) {
+            return;
+        }
+
+        long cpPosition = position();
+        write(buildConstantPool());
+
+        flush();
+        ByteBuffer header = ByteBuffer.allocate(24);
+        header.putLong(position() - chunkStart);
+        header.putLong(cpPosition - chunkStart);
+        header.putLong(metaPosition - chunkStart);
+        header.flip();
+        ch.write(header, chunkStart + 8);
+
+        chunkStart = -1;
+        types = null;
+        pools = null;
+    }
+
+    // Remembers where every constant is located, following the chain of constant pools of the input chunk
+    private void indexConstantPools() throws IOException {
+        long position = inputCpPosition;
+        while (true) {
+            ByteBuffer cp = in.readRawEvent(position);
+            getVarint(cp);
+            getVarint(cp);
+            getVarlong(cp);
+            getVarlong(cp);
+            long delta = getVarlong(cp);
+            getVarint(cp);
+
+            int poolCount = getVarint(cp);
+            for (int i = 0; i < poolCount; i++) {
+                int type = getVarint(cp);
+                JfrClass cls = types.get(type);
+                if (cls == null) {
+                    throw new IOException("Unknown constant pool type " + type);
+                }
+                if (cls.name.equals("jdk.types.ChunkHeader")) {
+                    cp.position(cp.position() + (JfrReader.CHUNK_HEADER_SIZE + 3));
+                    continue;
+                }
+
+                Pool pool = pools.get(type);
+                if (pool == null) {
+                    pools.put(type, pool = new Pool(type, cls.name.equals("java.lang.String")
+                            ? null : EventDecoder.compile(cls, types)));
+                }
+
+                for (int count = getVarint(cp); count > 0; count--) {
+                    int start = cp.position();
+                    long id = getVarlong(cp);
+                    if (pool.decoder == null) {
+                        skipString(cp);
+                    } else {
+                        walk(cp, pool.decoder.ops, 0, pool.decoder.ops.length, pool.decoder.constantTypes, false);
+                    }
+                    pool.add(id, cp, start, cp.position() - start);
+                }
+            }
+
+            if (delta == 0 || (position += delta) <= inputChunk) {
+                break;
+            }
+        }
+    }
+
+    private ByteBuffer buildConstantPool() {
+        final List<Pool> used = new ArrayList<>();
+        pools.forEach(new Dictionary.Visitor<Pool>() {
+            @Override
+            public void visit(long key, Pool pool) {
+                if (!pool.marked.isEmpty()) {
+                    used.add(pool);
+                }
+            }
+        });
+
+        Output out = new Output();
+        out.skip(5);
+        out.putVarlong(T_CPOOL);
+        out.putVarlong(startTicks);
+        out.putVarlong(0);
+        out.putVarlong(0);
+        out.putVarlong(1);
+        out.putVarlong(used.size());
+
+        for (Pool pool : used) {
+            out.putVarlong(pool.type);
+            out.putVarlong(pool.marked.cardinality());
+            for (int i = pool.marked.nextSetBit(0); i >= 0; i = pool.marked.nextSetBit(i + 1)) {
+                ByteBuffer source = pool.sources[i].duplicate();
+                source.limit(pool.offsets[i] + pool.lengths[i]).position(pool.offsets[i]);
+                out.put(source);
+            }
+        }
+
+        ByteBuffer result = out.toByteBuffer();
+        putPaddedVarint(result, 0, result.limit());
+        return result;
+    }
+
+    // Marks a constant and everything reachable from it
+    private void mark(int type, long id) {
+        Pool pool = pools.get(type);
+        int index = pool != null ? pool.indexOf(id) : -1;
+        if (index < 0 || pool.marked.get(index)) {
+            return;
+        }
+        pool.marked.set(index);
+
+        if (pool.decoder != null) {
+            ByteBuffer entry = pool.sources[index].duplicate();
+            entry.limit(pool.offsets[index] + pool.lengths[index]).position(pool.offsets[index]);
+            getVarlong(entry);
+            walk(entry, pool.decoder.ops, 0, pool.decoder.ops.length, pool.decoder.constantTypes, true);
+        }
+    }
+
+    // Skips fields described by the ops, marking referenced constants if requested
+    private void walk(ByteBuffer b, byte[] ops, int from, int to, int[] constantTypes, boolean mark) {
+        for (int i = from; i < to; ) {
+            switch (ops[i++]) {
+                case EventDecoder.CONSTANT: {
+                    int type = constantTypes[ops[i++]];
+                    long id = getVarlong(b);
+                    if (mark) mark(type, id);
+                    break;
+                }
+                case EventDecoder.ARRAY: {
+                    int length = ops[i++];
+                    for (int count = getVarint(b); count > 0; count--) {
+                        walk(b, ops, i, i + length, constantTypes, mark);
+                    }
+                    i += length;
+                    break;
+                }
+                case EventDecoder.STRING:
+                    if (b.get(b.position()) == STRING_CONSTANT) {
+                        b.get();
+                        long id = getVarlong(b);
+                        if (mark) mark(stringType, id);
+                    } else {
+                        skipString(b);
+                    }
+                    break;
+                case EventDecoder.FLOAT:
+                    b.position(b.position() + 4);
+                    break;
+                case EventDecoder.DOUBLE:
+                    b.position(b.position() + 8);
+                    break;
+                case EventDecoder.BYTE:
+                    b.get();
+                    break;
+                default:
+                    getVarlong(b);
+            }
+        }
+    }
+
+    private long position() {
+        return flushedPosition + buf.position();
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        if (data.remaining() > buf.remaining()) {
+            flush();
+            if (data.remaining() > buf.capacity()) {
+                flushedPosition += data.remaining();
+                while (data.hasRemaining()) {
+                    ch.write(data);
+                }
+                return;
+            }
+        }
+        buf.put(data);
+    }
+
+    private void flush() throws IOException {
+        buf.flip();
+        flushedPosition += buf.remaining();
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+        buf.clear();
+    }
+
+    private static void skipString(ByteBuffer b) {
+        switch (b.get()) {
+            case 3:
+            case 5:
+                int length = getVarint(b);
+                b.position(b.position() + length);
+                break;
+            case 4:
+                for (int count = getVarint(b); count > 0; count--) {
+                    getVarint(b);
+                }
+                break;
+            case STRING_CONSTANT:
+                getVarlong(b);
+                break;
+        }
+    }
+
+    private static int getVarint(ByteBuffer b) {
+        int result = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte v = b.get();
+            result |= (v & 0x7f) << shift;
+            if (v >= 0) {
+                return result;
+            }
+        }
+    }
+
+    private static long getVarlong(ByteBuffer b) {
+        long result = 0;
+        for (int shift = 0; shift < 56; shift += 7) {
+            byte v = b.get();
+            result |= (v & 0x7fL) << shift;
+            if (v >= 0) {
+                return result;
+            }
+        }
+        return result | (b.get() & 0xffL) << 56;
+    }
+
+    // Sizes are written in 5 bytes, so that they can be patched after the content is known
+    private static void putPaddedVarint(ByteBuffer b, int pos, int value) {
+        b.put(pos, (byte) (value | 0x80));
+        b.put(pos + 1, (byte) (value >>> 7 | 0x80));
+        b.put(pos + 2, (byte) (value >>> 14 | 0x80));
+        b.put(pos + 3, (byte) (value >>> 21 | 0x80));
+        b.put(pos + 4, (byte) (value >>> 28));
+    }
+
+    public interface Filter {
+        boolean accept(GenericEvent event);
+    }
+
+    // Constants of one type in the input chunk; ids are flipped to make any id a non-zero key
+    static class Pool {
+        final int type;
+        final EventDecoder decoder;
+        final CounterMap index = new CounterMap();
+        final BitSet marked = new BitSet();
+        ByteBuffer[] sources = new ByteBuffer[16];
+        int[] offsets = new int[16];
+        int[] lengths = new int[16];
+        int size;
+
+        Pool(int type, EventDecoder decoder) {
+            this.type = type;
+            this.decoder = decoder;
+        }
+
+        void add(long id, ByteBuffer source, int offset, int length) {
+            if (size == sources.length) {
+                sources = Arrays.copyOf(sources, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            sources[size] = source;
+            offsets[size] = offset;
+            lengths[size] = length;
+            index.put(id ^ Long.MIN_VALUE, ++size);
+        }
+
+        int indexOf(long id) {
+            return (int) index.get(id ^ Long.MIN_VALUE) - 1;
+        }
+    }
+
+    static class Output {
+        private byte[] data = new byte[65536];
+        private int size;
+
+        void skip(int bytes) {
+            ensureCapacity(bytes);
+            size += bytes;
+        }
+
+        void put(ByteBuffer source) {
+            int length = source.remaining();
+            ensureCapacity(length);
+            source.get(data, size, length);
+            size += length;
+        }
+
+        void putVarlong(long v) {
+            ensureCapacity(10);
+            while ((v >>> 7) != 0) {
+                data[size++] = (byte) (v | 0x80);
+                v >>>= 7;
+            }
+            data[size++] = (byte) v;
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(data, 0, size);
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (size + bytes > data.length) {
+                data = Arrays.copyOf(data, Math.max(size + bytes, data.length * 2));
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+/**
+ * Bounded min-heap that keeps N keys with the largest values.
+ */
+public class TopN implements CounterMap.Visitor {
+    private final long[] keys;
+    private final long[] values;
+    private int size;
+
+    public TopN(int n) {
+        this.keys = new long[n];
+        this.values = new long[n];
+    }
+
+    @Override
+    public void visit(long key, long value) {
+        if (size < keys.length) {
+            keys[size] = key;
+            values[size] = value;
+            siftUp(size++);
+        } else if (size > 0 && value > values[0]) {
+            keys[0] = key;
+            values[0] = value;
+            siftDown(0);
+        }
+    }
+
+    // Pops the minimum repeatedly, so the result is ordered by value descending
+    public long[] sortedKeys() {
+        long[] result = new long[size];
+        while (size > 0) {
+            result[--size] = keys[0];
+            keys[0] = keys[size];
+            values[0] = values[size];
+            siftDown(0);
+        }
+        return result;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (values[parent] <= values[i]) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        for (int child; (child = 2 * i + 1) < size; i = child) {
+            if (child + 1 < size && values[child + 1] < values[child]) child++;
+            if (values[i] <= values[child]) break;
+            swap(i, child);
+        }
+    }
+
+    private void swap(int i, int j) {
+        long k = keys[i];
+        keys[i] = keys[j];
+        keys[j] = k;
+        long v = values[i];
+        values[i] = values[j];
+        values[j] = v;
+    }
+}
@@ -22,7 +22,12 @@ public class AllocationSample extends Event {
     public final long tlabSize;
 
     public AllocationSample(long time, int tid, int stackTraceId, int classId, long allocationSize, long tlabSize) {
-        super(time, tid, stackTraceId);
+        this(time, tid, stackTraceId, classId, allocationSize, tlabSize, 0, 0);
+    }
+
+    public AllocationSample(long time, int tid, int stackTraceId, int classId, long allocationSize, long tlabSize,
+                            long spanId, long tag) {
+        super(time, tid, stackTraceId, spanId, tag);
         this.classId = classId;
         this.allocationSize = allocationSize;
         this.tlabSize = tlabSize;
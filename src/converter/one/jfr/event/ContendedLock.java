@@ -19,11 +19,23 @@ package one.jfr.event;
 public class ContendedLock extends Event {
     public final long duration;
     public final int classId;
+    public final boolean park;
 
     public ContendedLock(long time, int tid, int stackTraceId, long duration, int classId) {
-        super(time, tid, stackTraceId);
+        this(time, tid, stackTraceId, duration, classId, false);
+    }
+
+    // park distinguishes jdk.ThreadPark from jdk.JavaMonitorEnter events
+    public ContendedLock(long time, int tid, int stackTraceId, long duration, int classId, boolean park) {
+        this(time, tid, stackTraceId, duration, classId, park, 0, 0);
+    }
+
+    public ContendedLock(long time, int tid, int stackTraceId, long duration, int classId, boolean park,
+                         long spanId, long tag) {
+        super(time, tid, stackTraceId, spanId, tag);
         this.duration = duration;
         this.classId = classId;
+        this.park = park;
     }
 
     @Override
@@ -20,11 +20,20 @@ public abstract class Event implements Comparable<Event> {
     public final long time;
     public final int tid;
     public final int stackTraceId;
+    // Thread context set by the application at the time of the event, 0 if none
+    public final long spanId;
+    public final long tag;
 
     protected Event(long time, int tid, int stackTraceId) {
+        this(time, tid, stackTraceId, 0, 0);
+    }
+
+    protected Event(long time, int tid, int stackTraceId, long spanId, long tag) {
         this.time = time;
         this.tid = tid;
         this.stackTraceId = stackTraceId;
+        this.spanId = spanId;
+        this.tag = tag;
     }
 
     @Override
@@ -20,13 +20,24 @@ public class EventAggregator {
     private static final int INITIAL_CAPACITY = 1024;
 
     private final boolean threads;
+    private final boolean tags;
     private final boolean total;
     private Event[] keys;
     private long[] values;
     private int size;
 
     public EventAggregator(boolean threads, boolean total) {
+        this(threads, false, total);
+    }
+
+    /**
+     * @param threads keep events of different threads apart
+     * @param tags    keep events with different thread context tags apart
+     * @param total   sum event values rather than count events
+     */
+    public EventAggregator(boolean threads, boolean tags, boolean total) {
         this.threads = threads;
+        this.tags = tags;
         this.total = total;
         this.keys = new Event[INITIAL_CAPACITY];
         this.values = new long[INITIAL_CAPACITY];
@@ -60,6 +71,16 @@ public class EventAggregator {
         return values[i];
     }
 
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        keys = new Event[INITIAL_CAPACITY];
+        values = new long[INITIAL_CAPACITY];
+        size = 0;
+    }
+
     public void forEach(Visitor visitor) {
         for (int i = 0; i < keys.length; i++) {
             if (keys[i] != null) {
@@ -69,11 +90,12 @@ public class EventAggregator {
     }
 
     private int hashCode(Event e) {
-        return e.hashCode() + (threads ? e.tid * 31 : 0);
+        return e.hashCode() + (threads ? e.tid * 31 : 0) + (tags ? (int) (e.tag ^ e.tag >>> 32) * 61 : 0);
     }
 
     private boolean sameGroup(Event e1, Event e2) {
-        return e1.stackTraceId == e2.stackTraceId && (!threads || e1.tid == e2.tid) && e1.sameGroup(e2);
+        return e1.stackTraceId == e2.stackTraceId && (!threads || e1.tid == e2.tid) && (!tags || e1.tag == e2.tag)
+                && e1.sameGroup(e2);
     }
 
     private void resize(int newCapacity) {
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr.event;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Orders events by time using external merge sort.
+ * Up to memoryLimit bytes of events are sorted in heap; larger inputs are split
+ * into sorted runs on disk which are merged lazily while reading.
+ * Zero memoryLimit means everything is sorted in memory like JfrReader.readAllEvents.
+ */
+public class EventSorter implements Closeable {
+    // Approximate heap footprint of one event including the list slot
+    private static final int EVENT_SIZE = 64;
+
+    private final int maxSize;
+    private final List<SpillFile> spills = new ArrayList<>();
+    private ArrayList<Event> events = new ArrayList<>();
+    private PriorityQueue<SpillFile> queue;
+    private int index;
+
+    public EventSorter(long memoryLimit) {
+        this.maxSize = memoryLimit <= 0 ? Integer.MAX_VALUE
+                : (int) Math.max(1024, Math.min(Integer.MAX_VALUE, memoryLimit / EVENT_SIZE));
+    }
+
+    public void add(Event e) throws IOException {
+        if (queue != null || events == null) {
+            throw new IllegalStateException("Sorting is already finished");
+        }
+        events.add(e);
+        if (events.size() >= maxSize) {
+            spill();
+        }
+    }
+
+    // Returns events in time order; null marks the end
+    public Event next() throws IOException {
+        if (queue == null) {
+            finish();
+        }
+
+        if (events != null) {
+            return index < events.size() ? events.get(index++) : null;
+        }
+
+        SpillFile spill = queue.poll();
+        if (spill == null) {
+            return null;
+        }
+        Event event = spill.event;
+        if (spill.next()) {
+            queue.add(spill);
+        }
+        return event;
+    }
+
+    private void finish() throws IOException {
+        queue = new PriorityQueue<>(Math.max(spills.size(), 1), new Comparator<SpillFile>() {
+            @Override
+            public int compare(SpillFile s1, SpillFile s2) {
+                return s1.event.compareTo(s2.event);
+            }
+        });
+
+        if (spills.isEmpty()) {
+            Collections.sort(events);
+            return;
+        }
+
+        spill();
+        events = null;
+        for (SpillFile spill : spills) {
+            if (spill.startReading()) {
+                queue.add(spill);
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        if (events.isEmpty()) {
+            return;
+        }
+
+        Collections.sort(events);
+        SpillFile spill = new SpillFile();
+        spills.add(spill);
+        for (Event event : events) {
+            spill.write(event, 0);
+        }
+        events = new ArrayList<>();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SpillFile spill : spills) {
+            spill.close();
+        }
+        spills.clear();
+        events = null;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr.event;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Layout of a JFR event type as described by the recording metadata.
+ * Fields of nested structures are flattened into "parent.child" names;
+ * array fields hold the number of elements.
+ */
+public class EventType {
+    public static final byte LONG = 0;
+    public static final byte DOUBLE = 1;
+    public static final byte STRING = 2;
+
+    public final int id;
+    public final String name;
+    private final String[] fieldNames;
+    private final byte[] fieldKinds;
+    private final Map<String, Integer> fieldIndices;
+
+    public EventType(int id, String name, String[] fieldNames, byte[] fieldKinds) {
+        this.id = id;
+        this.name = name;
+        this.fieldNames = fieldNames;
+        this.fieldKinds = fieldKinds;
+        this.fieldIndices = new HashMap<>(fieldNames.length * 2);
+        for (int i = 0; i < fieldNames.length; i++) {
+            fieldIndices.put(fieldNames[i], i);
+        }
+    }
+
+    public int fieldCount() {
+        return fieldNames.length;
+    }
+
+    public String fieldName(int index) {
+        return fieldNames[index];
+    }
+
+    public byte fieldKind(int index) {
+        return fieldKinds[index];
+    }
+
+    /**
+     * Resolve the index once and use it for every event of this type,
+     * since the layout does not change within a chunk.
+     */
+    public int indexOf(String fieldName) {
+        Integer index = fieldIndices.get(fieldName);
+        return index != null ? index : -1;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -20,7 +20,11 @@ public class ExecutionSample extends Event {
     public final int threadState;
 
     public ExecutionSample(long time, int tid, int stackTraceId, int threadState) {
-        super(time, tid, stackTraceId);
+        this(time, tid, stackTraceId, threadState, 0, 0);
+    }
+
+    public ExecutionSample(long time, int tid, int stackTraceId, int threadState, long spanId, long tag) {
+        super(time, tid, stackTraceId, spanId, tag);
         this.threadState = threadState;
     }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr.event;
+
+/**
+ * Event of any type decoded according to the recording metadata.
+ * Integer, boolean and constant pool fields are stored as long values;
+ * constant pool fields hold the id of the referenced constant.
+ */
+public class GenericEvent extends Event {
+    public final EventType type;
+    private final long[] values;
+    private final String[] strings;
+
+    public GenericEvent(long time, int tid, int stackTraceId, EventType type, long[] values, String[] strings) {
+        super(time, tid, stackTraceId);
+        this.type = type;
+        this.values = values;
+        this.strings = strings;
+    }
+
+    public long getLong(int index) {
+        return type.fieldKind(index) == EventType.DOUBLE ? (long) Double.longBitsToDouble(values[index]) : values[index];
+    }
+
+    public double getDouble(int index) {
+        return type.fieldKind(index) == EventType.DOUBLE ? Double.longBitsToDouble(values[index]) : values[index];
+    }
+
+    public String getString(int index) {
+        return strings != null ? strings[index] : null;
+    }
+
+    public long getLong(String field) {
+        int index = type.indexOf(field);
+        return index >= 0 ? getLong(index) : 0;
+    }
+
+    public double getDouble(String field) {
+        int index = type.indexOf(field);
+        return index >= 0 ? getDouble(index) : 0;
+    }
+
+    public String getString(String field) {
+        int index = type.indexOf(field);
+        return index >= 0 ? getString(index) : null;
+    }
+
+    @Override
+    public boolean sameGroup(Event o) {
+        return o instanceof GenericEvent && type == ((GenericEvent) o).type;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(type.name).append(" {");
+        for (int i = 0; i < type.fieldCount(); i++) {
+            sb.append(i == 0 ? " " : ", ").append(type.fieldName(i)).append(" = ");
+            switch (type.fieldKind(i)) {
+                case EventType.DOUBLE:
+                    sb.append(getDouble(i));
+                    break;
+                case EventType.STRING:
+                    sb.append(getString(i));
+                    break;
+                default:
+                    sb.append(getLong(i));
+            }
+        }
+        return sb.append(" }").toString();
+    }
+}
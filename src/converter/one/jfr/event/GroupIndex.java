@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr.event;
+
+import java.util.Arrays;
+
+/**
+ * Assigns sequential indices to distinct groups of events, where events are
+ * grouped by stack trace the same way as EventAggregator does without threads.
+ */
+public class GroupIndex {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private Event[] keys;
+    private int[] indices;
+    private Event[] groups;
+    private int size;
+
+    public GroupIndex() {
+        this.keys = new Event[INITIAL_CAPACITY];
+        this.indices = new int[INITIAL_CAPACITY];
+        this.groups = new Event[INITIAL_CAPACITY / 2];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Representative event of the group with the given index
+    public Event get(int index) {
+        return groups[index];
+    }
+
+    public int indexOf(Event e) {
+        int mask = keys.length - 1;
+        int i = e.hashCode() & mask;
+        while (keys[i] != null) {
+            if (keys[i].stackTraceId == e.stackTraceId && keys[i].sameGroup(e)) {
+                return indices[i];
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = e;
+        indices[i] = size;
+        if (size == groups.length) {
+            groups = Arrays.copyOf(groups, size * 2);
+        }
+        groups[size] = e;
+
+        if (++size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        return size - 1;
+    }
+
+    private void resize(int newCapacity) {
+        Event[] newKeys = new Event[newCapacity];
+        int[] newIndices = new int[newCapacity];
+        int mask = newKeys.length - 1;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                for (int j = keys[i].hashCode() & mask; ; j = (j + 1) & mask) {
+                    if (newKeys[j] == null) {
+                        newKeys[j] = keys[i];
+                        newIndices[j] = indices[i];
+                        break;
+                    }
+                }
+            }
+        }
+
+        keys = newKeys;
+        indices = newIndices;
+    }
+}
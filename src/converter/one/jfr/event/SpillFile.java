@@ -0,0 +1,152 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr.event;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Temporary file with a sorted run of (event, value) records.
+ * Written once, then read sequentially while merging runs.
+ * The file is deleted by close(); deleteOnExit() is not used, since in a long running
+ * process its registry of files would grow with every spill.
+ */
+class SpillFile implements Closeable {
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final byte EXECUTION_SAMPLE = 0;
+    private static final byte ALLOCATION_SAMPLE = 1;
+    private static final byte CONTENDED_LOCK = 2;
+
+    private final File file;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private long count;
+
+    Event event;
+    long value;
+
+    SpillFile() throws IOException {
+        this.file = File.createTempFile("jfr-spill", ".tmp");
+        try {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    void write(Event e, long value) throws IOException {
+        if (e instanceof ExecutionSample) {
+            out.writeByte(EXECUTION_SAMPLE);
+            writeHeader(e);
+            out.writeInt(((ExecutionSample) e).threadState);
+        } else if (e instanceof AllocationSample) {
+            AllocationSample a = (AllocationSample) e;
+            out.writeByte(ALLOCATION_SAMPLE);
+            writeHeader(e);
+            out.writeInt(a.classId);
+            out.writeLong(a.allocationSize);
+            out.writeLong(a.tlabSize);
+        } else if (e instanceof ContendedLock) {
+            ContendedLock c = (ContendedLock) e;
+            out.writeByte(CONTENDED_LOCK);
+            writeHeader(e);
+            out.writeLong(c.duration);
+            out.writeInt(c.classId);
+            out.writeBoolean(c.park);
+        } else {
+            throw new IllegalArgumentException("Unsupported event: " + e.getClass().getName());
+        }
+        out.writeLong(value);
+        count++;
+    }
+
+    private void writeHeader(Event e) throws IOException {
+        out.writeLong(e.time);
+        out.writeInt(e.tid);
+        out.writeInt(e.stackTraceId);
+        out.writeLong(e.spanId);
+        out.writeLong(e.tag);
+    }
+
+    // Switches the file to reading and positions it at the first record
+    boolean startReading() throws IOException {
+        out.close();
+        out = null;
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        return next();
+    }
+
+    boolean next() throws IOException {
+        if (count == 0) {
+            event = null;
+            return false;
+        }
+        count--;
+
+        byte kind = in.readByte();
+        long time = in.readLong();
+        int tid = in.readInt();
+        int stackTraceId = in.readInt();
+        long spanId = in.readLong();
+        long tag = in.readLong();
+        switch (kind) {
+            case EXECUTION_SAMPLE:
+                event = new ExecutionSample(time, tid, stackTraceId, in.readInt(), spanId, tag);
+                break;
+            case ALLOCATION_SAMPLE:
+                event = new AllocationSample(time, tid, stackTraceId, in.readInt(), in.readLong(), in.readLong(), spanId, tag);
+                break;
+            case CONTENDED_LOCK:
+                event = new ContendedLock(time, tid, stackTraceId, in.readLong(), in.readInt(), in.readBoolean(), spanId, tag);
+                break;
+            default:
+                throw new IOException("Corrupted spill file " + file);
+        }
+        value = in.readLong();
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (out != null) out.close();
+            if (in != null) in.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    // Orders events of different kinds and groups within one stack trace
+    static long groupKey(Event e) {
+        if (e instanceof AllocationSample) {
+            AllocationSample a = (AllocationSample) e;
+            return (long) ALLOCATION_SAMPLE << 40 | (a.tlabSize == 0 ? 1L << 32 : 0) | (a.classId & 0xffffffffL);
+        } else if (e instanceof ContendedLock) {
+            return (long) CONTENDED_LOCK << 40 | (((ContendedLock) e).classId & 0xffffffffL);
+        }
+        return 0;
+    }
+}
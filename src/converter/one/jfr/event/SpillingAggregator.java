@@ -0,0 +1,169 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr.event;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * EventAggregator that keeps at most memoryLimit bytes worth of groups in heap.
+ * When the limit is reached, partial aggregates are sorted by group and spilled
+ * to a temporary file; forEach then merges all spilled runs in a single pass.
+ */
+public class SpillingAggregator extends EventAggregator {
+    // Approximate heap footprint of one group: the event itself plus hash table slots
+    private static final int ENTRY_SIZE = 96;
+
+    private final boolean threads;
+    private final boolean tags;
+    private final int maxSize;
+    private final List<SpillFile> spills = new ArrayList<>();
+
+    private final Comparator<Event> groupOrder = new Comparator<Event>() {
+        @Override
+        public int compare(Event e1, Event e2) {
+            if (e1.stackTraceId != e2.stackTraceId) {
+                return e1.stackTraceId < e2.stackTraceId ? -1 : 1;
+            }
+            if (threads && e1.tid != e2.tid) {
+                return e1.tid < e2.tid ? -1 : 1;
+            }
+            if (tags && e1.tag != e2.tag) {
+                return e1.tag < e2.tag ? -1 : 1;
+            }
+            return Long.compare(SpillFile.groupKey(e1), SpillFile.groupKey(e2));
+        }
+    };
+
+    public SpillingAggregator(boolean threads, boolean total, long memoryLimit) {
+        this(threads, false, total, memoryLimit);
+    }
+
+    public SpillingAggregator(boolean threads, boolean tags, boolean total, long memoryLimit) {
+        super(threads, tags, total);
+        this.threads = threads;
+        this.tags = tags;
+        this.maxSize = (int) Math.max(1024, Math.min(Integer.MAX_VALUE, memoryLimit / ENTRY_SIZE));
+    }
+
+    @Override
+    public void collect(Event e) {
+        super.collect(e);
+        if (size() >= maxSize) {
+            try {
+                spill();
+            } catch (IOException ex) {
+                throw new IllegalStateException("Failed to spill aggregated events", ex);
+            }
+        }
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        if (spills.isEmpty()) {
+            super.forEach(visitor);
+            return;
+        }
+
+        try {
+            spill();
+            merge(visitor);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Failed to merge spilled events", ex);
+        } finally {
+            closeSpills();
+        }
+    }
+
+    private void spill() throws IOException {
+        if (size() == 0) {
+            return;
+        }
+
+        final Event[] events = new Event[size()];
+        super.forEach(new Visitor() {
+            int count;
+
+            @Override
+            public void visit(Event event, long value) {
+                events[count++] = event;
+            }
+        });
+        Arrays.sort(events, groupOrder);
+
+        SpillFile spill = new SpillFile();
+        spills.add(spill);
+        for (Event event : events) {
+            spill.write(event, getValue(event));
+        }
+        clear();
+    }
+
+    // k-way merge of sorted runs; equal groups from different runs are adjacent
+    private void merge(Visitor visitor) throws IOException {
+        PriorityQueue<SpillFile> queue = new PriorityQueue<>(spills.size(), new Comparator<SpillFile>() {
+            @Override
+            public int compare(SpillFile s1, SpillFile s2) {
+                return groupOrder.compare(s1.event, s2.event);
+            }
+        });
+
+        for (SpillFile spill : spills) {
+            if (spill.startReading()) {
+                queue.add(spill);
+            }
+        }
+
+        Event group = null;
+        long groupValue = 0;
+        while (!queue.isEmpty()) {
+            SpillFile spill = queue.poll();
+            if (group != null && groupOrder.compare(group, spill.event) == 0) {
+                groupValue += spill.value;
+            } else {
+                if (group != null) {
+                    visitor.visit(group, groupValue);
+                }
+                group = spill.event;
+                groupValue = spill.value;
+            }
+
+            if (spill.next()) {
+                queue.add(spill);
+            }
+        }
+
+        if (group != null) {
+            visitor.visit(group, groupValue);
+        }
+    }
+
+    private void closeSpills() {
+        for (SpillFile spill : spills) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                // The file itself is deleted by close() regardless
+            }
+        }
+        spills.clear();
+    }
+}
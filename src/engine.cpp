@@ -32,6 +32,13 @@ Error Engine::start(Arguments& args) {
 void Engine::stop() {
 }
 
+long Engine::interval() {
+    return 0;
+}
+
+void Engine::setInterval(long interval) {
+}
+
 int Engine::getNativeTrace(void* ucontext, int tid, const void** callchain, int max_depth) {
     const void* pc;
     uintptr_t fp;
@@ -37,6 +37,10 @@ class Engine {
     virtual Error start(Arguments& args);
     virtual void stop();
 
+    // Sampling interval of a running engine, 0 if the engine has no interval
+    virtual long interval();
+    virtual void setInterval(long interval);
+
     virtual int getNativeTrace(void* ucontext, int tid, const void** callchain, int max_depth);
 
     void enableEvents(bool enabled) {
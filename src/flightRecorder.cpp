@@ -58,7 +58,6 @@ const u64 MIN_JLONG = 0x8000000000000000ULL;
 
 
 static SpinLock _rec_lock(1);
-static volatile bool _timer_is_running;
 
 static jclass _jfr_sync_class = NULL;
 static jmethodID _start_method;
@@ -390,13 +389,34 @@ class Recording {
     static char* _jvm_flags;
     static char* _java_command;
 
-    RecordingBuffer _buf[CONCURRENCY_LEVEL];
+  public:
+    static u64 _flushes;
+    static u64 _flushed_bytes;
+
+  private:
+
+    // Events are recorded to _buf, while the other buffer set is written out on chunk switch
+    RecordingBuffer _buf_sets[2][CONCURRENCY_LEVEL];
+    RecordingBuffer* _buf;
+    RecordingBuffer* _spare_buf;
+    volatile bool _switching;
     int _fd;
-    pthread_t _timer_thread;
+    // Owned by the timer thread, which may outlive its Recording and frees the Timer on exit.
+    // Each Recording has its own Timer, so that stopping one does not affect another in loop mode
+    struct Timer {
+        Recording* rec;
+        pthread_t thread;
+        volatile bool running;
+    };
+
+    Timer* _timer;
     char* _master_recording_file;
     off_t _chunk_start;
     ThreadFilter _thread_set;
     MethodMap _method_map;
+    // Call traces referenced by events of the current chunk, collected at the moment of chunk switch
+    std::map<u32, CallTrace*> _traces;
+    bool _traces_collected;
 
     u64 _start_time;
     u64 _start_ticks;
@@ -452,21 +472,25 @@ class Recording {
 
     // Note: this loop runs asynchronously with the recording termination.
     // Must not access Recording fields without lock guard.
-    void timerLoop() {
+    static void timerLoop(Timer* timer) {
         u64 current_time = OS::nanotime();
 
-        while (_timer_is_running) {
+        while (timer->running) {
             u64 sleep_until = current_time + 1000000000;
             while ((current_time = OS::nanotime()) < sleep_until) {
                 OS::sleep(sleep_until - current_time);
-                if (!_timer_is_running) return;
+                if (!timer->running) return;
             }
 
             bool need_switch_chunk = false;
 
+            // Recording is deleted under the exclusive lock after its timer is stopped,
+            // so it is alive as long as the timer is running and the shared lock is held
             if (_rec_lock.tryLockShared()) {
-                cpuMonitorCycle();
-                need_switch_chunk = needSwitchChunk();
+                if (timer->running) {
+                    timer->rec->cpuMonitorCycle();
+                    need_switch_chunk = timer->rec->needSwitchChunk();
+                }
                 _rec_lock.unlockShared();
             }
 
@@ -477,28 +501,35 @@ class Recording {
         }
     }
 
-    static void* threadEntry(void* rec) {
+    static void* threadEntry(void* arg) {
+        Timer* timer = (Timer*)arg;
         VM::attachThread("Async-profiler Timer");
-        ((Recording*)rec)->timerLoop();
+        timerLoop(timer);
         VM::detachThread();
+        delete timer;
         return NULL;
     }
 
     void startTimer() {
-        _timer_is_running = true;
-        if (pthread_create(&_timer_thread, NULL, threadEntry, this) != 0) {
+        _timer = new Timer();
+        _timer->rec = this;
+        _timer->running = true;
+        if (pthread_create(&_timer->thread, NULL, threadEntry, _timer) != 0) {
             Log::warn("Unable to create JFR timer thread");
-            _timer_is_running = false;
+            delete _timer;
+            _timer = NULL;
         }
     }
 
     void stopTimer() {
-        if (_timer_is_running) {
-            _timer_is_running = false;
-            pthread_kill(_timer_thread, WAKEUP_SIGNAL);
+        if (_timer != NULL) {
+            pthread_t thread = _timer->thread;
+            _timer->running = false;
+            _timer = NULL;
+            pthread_kill(thread, WAKEUP_SIGNAL);
             // Do not wait until timer thread finishes, otherwise we can deadlock.
             // timerLoop() is harmless; it's OK to finish it asynchronously.
-            pthread_detach(_timer_thread);
+            pthread_detach(thread);
         }
     }
 
@@ -508,6 +539,10 @@ class Recording {
 
   public:
     Recording(int fd, Arguments& args) : _fd(fd), _thread_set(), _method_map() {
+        _buf = _buf_sets[0];
+        _spare_buf = _buf_sets[1];
+        _switching = false;
+        _traces_collected = false;
         _master_recording_file = args._jfr_sync == NULL ? NULL : strdup(args._file);
         _chunk_start = lseek(_fd, 0, SEEK_END);
         _start_time = OS::micros();
@@ -553,7 +588,9 @@ class Recording {
     ~Recording() {
         stopTimer();
 
-        off_t chunk_end = finishChunk();
+        _stop_time = OS::micros();
+        _stop_ticks = TSC::ticks();
+        off_t chunk_end = finishChunk(_buf);
 
         if (_master_recording_file != NULL) {
             appendRecording(_master_recording_file, chunk_end);
@@ -563,27 +600,24 @@ class Recording {
         close(_fd);
     }
 
-    off_t finishChunk() {
+    off_t finishChunk(RecordingBuffer* buf) {
         flush(&_cpu_monitor_buf);
 
-        writeNativeLibraries(_buf);
+        writeNativeLibraries(buf);
 
         for (int i = 0; i < CONCURRENCY_LEVEL; i++) {
-            flush(&_buf[i]);
+            flush(&buf[i]);
         }
 
-        _stop_time = OS::micros();
-        _stop_ticks = TSC::ticks();
-
         off_t cpool_offset = lseek(_fd, 0, SEEK_CUR);
-        writeCpool(_buf);
-        flush(_buf);
+        writeCpool(buf);
+        flush(buf);
 
         off_t chunk_end = lseek(_fd, 0, SEEK_CUR);
 
         // Patch cpool size field
-        _buf->putVar32(0, chunk_end - cpool_offset);
-        ssize_t result = pwrite(_fd, _buf->data(), 5, cpool_offset);
+        buf->putVar32(0, chunk_end - cpool_offset);
+        ssize_t result = pwrite(_fd, buf->data(), 5, cpool_offset);
         (void)result;
 
         // Workaround for JDK-8191415: compute actual TSC frequency, in case JFR is wrong
@@ -593,31 +627,60 @@ class Recording {
         }
 
         // Patch chunk header
-        _buf->put64(chunk_end - _chunk_start);
-        _buf->put64(cpool_offset - _chunk_start);
-        _buf->put64(68);
-        _buf->put64(_start_time * 1000);
-        _buf->put64((_stop_time - _start_time) * 1000);
-        _buf->put64(_start_ticks);
-        _buf->put64(tsc_frequency);
-        result = pwrite(_fd, _buf->data(), 56, _chunk_start + 8);
+        buf->put64(chunk_end - _chunk_start);
+        buf->put64(cpool_offset - _chunk_start);
+        buf->put64(68);
+        buf->put64(_start_time * 1000);
+        buf->put64((_stop_time - _start_time) * 1000);
+        buf->put64(_start_ticks);
+        buf->put64(tsc_frequency);
+        result = pwrite(_fd, buf->data(), 56, _chunk_start + 8);
         (void)result;
 
-        _buf->reset();
+        buf->reset();
         return chunk_end;
     }
 
+    // Called under all profiler locks. Only swaps buffer sets, so that the locks are held for a moment:
+    // new events go to the empty set, while switchChunk() writes out the full one
+    void switchBuffers() {
+        RecordingBuffer* buf = _buf;
+        _buf = _spare_buf;
+        _spare_buf = buf;
+
+        _stop_time = OS::micros();
+        _stop_ticks = TSC::ticks();
+        _switching = true;
+
+        collectTraces();
+    }
+
+    // Called under all profiler locks, so that no put() is in progress, and all samples counted
+    // in the call trace storage belong to events of the chunk being completed
+    void collectTraces() {
+        Profiler::instance()->_call_trace_storage.collectTraces(_traces);
+        _traces_collected = true;
+    }
+
+    // Called without profiler locks after switchBuffers(). Until the new chunk header is written,
+    // event buffers are not flushed to the file, and events that do not fit are dropped
     void switchChunk() {
-        _chunk_start = finishChunk();
+        _chunk_start = finishChunk(_spare_buf);
         _start_time = _stop_time;
         _start_ticks = _stop_ticks;
         _base_id += 0x1000000;
         _bytes_written = 0;
 
-        writeHeader(_buf);
-        writeMetadata(_buf);
-        writeRecordingInfo(_buf);
-        flush(_buf);
+        writeHeader(_spare_buf);
+        writeMetadata(_spare_buf);
+        writeRecordingInfo(_spare_buf);
+        flush(_spare_buf);
+
+        _switching = false;
+    }
+
+    bool switching() {
+        return _switching;
     }
 
     bool hasMasterRecording() const {
@@ -689,7 +752,9 @@ class Recording {
         ssize_t result = write(_fd, buf->data(), buf->offset());
         if (result > 0) {
             atomicInc(_bytes_written, result);
+            atomicInc(_flushed_bytes, result);
         }
+        atomicInc(_flushes);
         buf->reset();
     }
 
@@ -1012,8 +1077,10 @@ class Recording {
     }
 
     void writeStackTraces(Buffer* buf, Lookup* lookup) {
-        std::map<u32, CallTrace*> traces;
-        Profiler::instance()->_call_trace_storage.collectTraces(traces);
+        if (!_traces_collected) {
+            collectTraces();
+        }
+        std::map<u32, CallTrace*>& traces = _traces;
 
         buf->putVar32(T_STACK_TRACE);
         buf->putVar32(traces.size());
@@ -1038,6 +1105,9 @@ class Recording {
             }
             flushIfNeeded(buf);
         }
+
+        traces.clear();
+        _traces_collected = false;
     }
 
     void writeMethods(Buffer* buf, Lookup* lookup) {
@@ -1119,17 +1189,19 @@ class Recording {
         }
     }
 
-    void recordExecutionSample(Buffer* buf, int tid, u32 call_trace_id, ExecutionEvent* event) {
+    void recordExecutionSample(Buffer* buf, int tid, u32 call_trace_id, ExecutionEvent* event, Context* context) {
         int start = buf->skip(1);
         buf->put8(T_EXECUTION_SAMPLE);
         buf->putVar64(TSC::ticks());
         buf->putVar32(tid);
         buf->putVar32(call_trace_id);
         buf->putVar32(event->_thread_state);
+        buf->putVar64(context->span_id);
+        buf->putVar64(context->tag);
         buf->put8(start, buf->offset() - start);
     }
 
-    void recordAllocationInNewTLAB(Buffer* buf, int tid, u32 call_trace_id, AllocEvent* event) {
+    void recordAllocationInNewTLAB(Buffer* buf, int tid, u32 call_trace_id, AllocEvent* event, Context* context) {
         int start = buf->skip(1);
         buf->put8(T_ALLOC_IN_NEW_TLAB);
         buf->putVar64(TSC::ticks());
@@ -1138,10 +1210,12 @@ class Recording {
         buf->putVar32(event->_class_id);
         buf->putVar64(event->_instance_size);
         buf->putVar64(event->_total_size);
+        buf->putVar64(context->span_id);
+        buf->putVar64(context->tag);
         buf->put8(start, buf->offset() - start);
     }
 
-    void recordAllocationOutsideTLAB(Buffer* buf, int tid, u32 call_trace_id, AllocEvent* event) {
+    void recordAllocationOutsideTLAB(Buffer* buf, int tid, u32 call_trace_id, AllocEvent* event, Context* context) {
         int start = buf->skip(1);
         buf->put8(T_ALLOC_OUTSIDE_TLAB);
         buf->putVar64(TSC::ticks());
@@ -1149,10 +1223,12 @@ class Recording {
         buf->putVar32(call_trace_id);
         buf->putVar32(event->_class_id);
         buf->putVar64(event->_total_size);
+        buf->putVar64(context->span_id);
+        buf->putVar64(context->tag);
         buf->put8(start, buf->offset() - start);
     }
 
-    void recordMonitorBlocked(Buffer* buf, int tid, u32 call_trace_id, LockEvent* event) {
+    void recordMonitorBlocked(Buffer* buf, int tid, u32 call_trace_id, LockEvent* event, Context* context) {
         int start = buf->skip(1);
         buf->put8(T_MONITOR_ENTER);
         buf->putVar64(event->_start_time);
@@ -1162,10 +1238,12 @@ class Recording {
         buf->putVar32(event->_class_id);
         buf->put8(0);
         buf->putVar64(event->_address);
+        buf->putVar64(context->span_id);
+        buf->putVar64(context->tag);
         buf->put8(start, buf->offset() - start);
     }
 
-    void recordThreadPark(Buffer* buf, int tid, u32 call_trace_id, LockEvent* event) {
+    void recordThreadPark(Buffer* buf, int tid, u32 call_trace_id, LockEvent* event, Context* context) {
         int start = buf->skip(1);
         buf->put8(T_THREAD_PARK);
         buf->putVar64(event->_start_time);
@@ -1176,6 +1254,8 @@ class Recording {
         buf->putVar64(event->_timeout);
         buf->putVar64(MIN_JLONG);
         buf->putVar64(event->_address);
+        buf->putVar64(context->span_id);
+        buf->putVar64(context->tag);
         buf->put8(start, buf->offset() - start);
     }
 
@@ -1200,6 +1280,8 @@ char* Recording::_agent_properties = NULL;
 char* Recording::_jvm_args = NULL;
 char* Recording::_jvm_flags = NULL;
 char* Recording::_java_command = NULL;
+u64 Recording::_flushes = 0;
+u64 Recording::_flushed_bytes = 0;
 
 
 Error FlightRecorder::start(Arguments& args, bool reset) {
@@ -1254,6 +1336,20 @@ void FlightRecorder::stop() {
     }
 }
 
+u64 FlightRecorder::flushes() {
+    return loadAcquire(Recording::_flushes);
+}
+
+u64 FlightRecorder::flushedBytes() {
+    return loadAcquire(Recording::_flushed_bytes);
+}
+
+void FlightRecorder::switchBuffers() {
+    if (_rec != NULL) {
+        _rec->switchBuffers();
+    }
+}
+
 void FlightRecorder::flush() {
     if (_rec != NULL) {
         _rec_lock.lock();
@@ -1262,6 +1358,35 @@ void FlightRecorder::flush() {
     }
 }
 
+Error FlightRecorder::openNext(Arguments& args) {
+    int fd = open(args._file, O_CREAT | O_RDWR | O_TRUNC, 0644);
+    if (fd == -1) {
+        return Error("Could not open Flight Recorder output file");
+    }
+
+    _next = new Recording(fd, args);
+    return Error::OK;
+}
+
+void FlightRecorder::switchNext() {
+    // Call traces sampled so far belong to the previous file: counters are reset now,
+    // so that the next file defines every trace its events refer to
+    _rec->collectTraces();
+
+    Recording* rec = _rec;
+    _rec = _next;
+    _next = rec;
+}
+
+void FlightRecorder::closePrevious() {
+    if (_next != NULL) {
+        _rec_lock.lock();
+        delete _next;
+        _next = NULL;
+        _rec_lock.unlock();
+    }
+}
+
 Error FlightRecorder::startMasterRecording(Arguments& args) {
     JNIEnv* env = VM::jni();
 
@@ -1301,27 +1426,34 @@ void FlightRecorder::stopMasterRecording() {
 }
 
 void FlightRecorder::recordEvent(int lock_index, int tid, u32 call_trace_id,
-                                 int event_type, Event* event, u64 counter) {
+                                 int event_type, Event* event, Context* context, u64 counter) {
     if (_rec != NULL) {
         Buffer* buf = _rec->buffer(lock_index);
+        bool switching = _rec->switching();
+        if (switching && buf->offset() >= RECORDING_BUFFER_LIMIT) {
+            return;
+        }
+
         switch (event_type) {
             case 0:
-                _rec->recordExecutionSample(buf, tid, call_trace_id, (ExecutionEvent*)event);
+                _rec->recordExecutionSample(buf, tid, call_trace_id, (ExecutionEvent*)event, context);
                 break;
             case BCI_ALLOC:
-                _rec->recordAllocationInNewTLAB(buf, tid, call_trace_id, (AllocEvent*)event);
+                _rec->recordAllocationInNewTLAB(buf, tid, call_trace_id, (AllocEvent*)event, context);
                 break;
             case BCI_ALLOC_OUTSIDE_TLAB:
-                _rec->recordAllocationOutsideTLAB(buf, tid, call_trace_id, (AllocEvent*)event);
+                _rec->recordAllocationOutsideTLAB(buf, tid, call_trace_id, (AllocEvent*)event, context);
                 break;
             case BCI_LOCK:
-                _rec->recordMonitorBlocked(buf, tid, call_trace_id, (LockEvent*)event);
+                _rec->recordMonitorBlocked(buf, tid, call_trace_id, (LockEvent*)event, context);
                 break;
             case BCI_PARK:
-                _rec->recordThreadPark(buf, tid, call_trace_id, (LockEvent*)event);
+                _rec->recordThreadPark(buf, tid, call_trace_id, (LockEvent*)event, context);
                 break;
         }
-        _rec->flushIfNeeded(buf);
+        if (!switching) {
+            _rec->flushIfNeeded(buf);
+        }
         _rec->addThread(tid);
     }
 }
@@ -1346,3 +1478,31 @@ void FlightRecorder::recordLog(LogLevel level, const char* message, size_t len)
 
     _rec_lock.unlockShared();
 }
+
+void FlightRecorder::recordInterval(long interval) {
+    if (!_rec_lock.tryLockShared()) {
+        // No active recording
+        return;
+    }
+
+    char value[32];
+    sprintf(value, "%ld", interval);
+
+    Buffer* buf = (Buffer*)alloca(128);
+    buf->reset();
+
+    int tid = OS::threadId();
+    int start = buf->skip(5);
+    buf->put8(T_ACTIVE_SETTING);
+    buf->putVar64(TSC::ticks());
+    buf->putVar32(0);
+    buf->putVar32(tid);
+    buf->putVar32(T_EXECUTION_SAMPLE);
+    buf->putUtf8("interval");
+    buf->putUtf8(value);
+    buf->putVar32(start, buf->offset() - start);
+    _rec->flush(buf);
+    _rec->addThread(tid);
+
+    _rec_lock.unlockShared();
+}
@@ -19,6 +19,7 @@
 
 #include "arch.h"
 #include "arguments.h"
+#include "context.h"
 #include "event.h"
 #include "log.h"
 
@@ -27,26 +28,41 @@ class Recording;
 class FlightRecorder {
   private:
     Recording* _rec;
+    Recording* _next;
 
     Error startMasterRecording(Arguments& args);
     void stopMasterRecording();
 
   public:
-    FlightRecorder() : _rec(NULL) {
+    FlightRecorder() : _rec(NULL), _next(NULL) {
     }
 
     Error start(Arguments& args, bool reset);
     void stop();
+    // Chunk switch: switchBuffers() is called under all profiler locks and must be followed by flush()
+    void switchBuffers();
     void flush();
 
+    // File rotation: openNext() prepares a recording to a new file while the current one is active;
+    // switchNext() is called under all profiler locks to redirect events to it;
+    // closePrevious() then completes the previous file
+    Error openNext(Arguments& args);
+    void switchNext();
+    void closePrevious();
+
     bool active() {
         return _rec != NULL;
     }
 
+    // Number of buffer flushes and bytes written by all recordings so far
+    static u64 flushes();
+    static u64 flushedBytes();
+
     void recordEvent(int lock_index, int tid, u32 call_trace_id,
-                     int event_type, Event* event, u64 counter);
+                     int event_type, Event* event, Context* context, u64 counter);
 
     void recordLog(LogLevel level, const char* message, size_t len);
+    void recordInterval(long interval);
 };
 
 #endif // _FLIGHTRECORDER_H
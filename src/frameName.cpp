@@ -261,6 +261,11 @@ const char* FrameName::name(ASGCT_CallFrame& frame, bool for_matching) {
             return _buf;
         }
 
+        case BCI_CONTEXT_TAG: {
+            snprintf(_buf, sizeof(_buf) - 1, "[tag=%lld]", (long long)(intptr_t)frame.method_id);
+            return _buf;
+        }
+
         default: {
             JMethodCache::iterator it = _cache.lower_bound(frame.method_id);
             if (it != _cache.end() && it->first == frame.method_id) {
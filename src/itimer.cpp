@@ -52,17 +52,20 @@ Error ITimer::start(Arguments& args) {
 
     OS::installSignalHandler(SIGPROF, signalHandler);
 
-    time_t sec = _interval / 1000000000;
-    suseconds_t usec = (_interval % 1000000000) / 1000;
-    struct itimerval tv = {{sec, usec}, {sec, usec}};
-    
-    if (setitimer(ITIMER_PROF, &tv, NULL) != 0) {
+    if (!arm(_interval)) {
         return Error("ITIMER_PROF is not supported on this system");
     }
 
     return Error::OK;
 }
 
+bool ITimer::arm(long interval) {
+    time_t sec = interval / 1000000000;
+    suseconds_t usec = (interval % 1000000000) / 1000;
+    struct itimerval tv = {{sec, usec}, {sec, usec}};
+    return setitimer(ITIMER_PROF, &tv, NULL) == 0;
+}
+
 void ITimer::stop() {
     struct itimerval tv = {{0, 0}, {0, 0}};
     setitimer(ITIMER_PROF, &tv, NULL);
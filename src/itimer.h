@@ -27,6 +27,8 @@ class ITimer : public Engine {
 
     static void signalHandler(int signo, siginfo_t* siginfo, void* ucontext);
 
+    static bool arm(long interval);
+
   public:
     const char* title() {
         return "CPU profile";
@@ -39,6 +41,15 @@ class ITimer : public Engine {
     Error check(Arguments& args);
     Error start(Arguments& args);
     void stop();
+
+    long interval() {
+        return _interval;
+    }
+
+    void setInterval(long interval) {
+        _interval = interval;
+        arm(interval);
+    }
 };
 
 #endif // _ITIMER_H
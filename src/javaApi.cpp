@@ -17,6 +17,7 @@
 #include <fstream>
 #include <sstream>
 #include <errno.h>
+#include <stdlib.h>
 #include <string.h>
 #include "javaApi.h"
 #include "arguments.h"
@@ -68,6 +69,12 @@ Java_one_profiler_AsyncProfiler_execute0(JNIEnv* env, jobject unused, jstring co
     }
 
     if (!args.hasOutputFile()) {
+        if (args._output == OUTPUT_BINARY && (args._action == ACTION_STOP || args._action == ACTION_DUMP)) {
+            // Binary output is not valid modified UTF-8, and a delta dump would be lost in a broken String
+            JavaAPI::throwNew(env, "java/lang/IllegalArgumentException",
+                              "Binary output requires a file; use execute(String, WritableByteChannel) or snapshot()");
+            return NULL;
+        }
         std::ostringstream out;
         error = Profiler::instance()->runInternal(args, out);
         if (!error) {
@@ -94,11 +101,84 @@ Java_one_profiler_AsyncProfiler_execute0(JNIEnv* env, jobject unused, jstring co
     return NULL;
 }
 
+// Passes profiler output to a Java WritableByteChannel through a direct ByteBuffer,
+// so the output is never copied into a Java String, and its size is not limited by the maximum String length.
+// The output is rendered into native memory first, so that the channel code never runs
+// under the profiler state lock, and a slow consumer does not stall profiling.
+static bool writeToChannel(JNIEnv* env, jobject channel, const std::string& data) {
+    jclass channel_class = env->FindClass("java/nio/channels/WritableByteChannel");
+    jmethodID write = channel_class == NULL ? NULL : env->GetMethodID(channel_class, "write", "(Ljava/nio/ByteBuffer;)I");
+    if (write == NULL) {
+        return false;
+    } else if (data.empty()) {
+        return true;
+    }
+
+    jobject buffer = env->NewDirectByteBuffer((void*)data.data(), data.size());
+    if (buffer == NULL) {
+        if (!env->ExceptionCheck()) {
+            JavaAPI::throwNew(env, "java/io/IOException", "Failed to allocate direct buffer");
+        }
+        return false;
+    }
+
+    // Do not spin on a channel that accepts nothing, e.g. a non-blocking one
+    for (size_t written = 0; written < data.size(); ) {
+        int result = env->CallIntMethod(channel, write, buffer);
+        if (env->ExceptionCheck()) {
+            break;
+        } else if (result <= 0) {
+            JavaAPI::throwNew(env, "java/io/IOException", "Channel did not accept profiler output");
+            break;
+        }
+        written += result;
+    }
+    env->DeleteLocalRef(buffer);
+    return !env->ExceptionCheck();
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_one_profiler_AsyncProfiler_execute1(JNIEnv* env, jobject unused, jstring command, jobject channel) {
+    Arguments args;
+    const char* command_str = env->GetStringUTFChars(command, NULL);
+    Error error = args.parse(command_str);
+    env->ReleaseStringUTFChars(command, command_str);
+
+    if (error) {
+        JavaAPI::throwNew(env, "java/lang/IllegalArgumentException", error.message());
+        return;
+    }
+
+    std::ostringstream out;
+    error = Profiler::instance()->runInternal(args, out);
+    if (error) {
+        JavaAPI::throwNew(env, "java/lang/IllegalStateException", error.message());
+        return;
+    }
+
+    // An exception thrown by the channel is propagated as is
+    if (!writeToChannel(env, channel, out.str()) && !env->ExceptionCheck()) {
+        JavaAPI::throwNew(env, "java/io/IOException", "Failed to write profiler output");
+    }
+}
+
 extern "C" JNIEXPORT jlong JNICALL
 Java_one_profiler_AsyncProfiler_getSamples(JNIEnv* env, jobject unused) {
     return (jlong)Profiler::instance()->total_samples();
 }
 
+extern "C" JNIEXPORT jlongArray JNICALL
+Java_one_profiler_AsyncProfiler_getMetrics0(JNIEnv* env, jobject unused) {
+    u64 metrics[METRIC_COUNT];
+    Profiler::instance()->getMetrics(metrics);
+
+    jlongArray result = env->NewLongArray(METRIC_COUNT);
+    if (result != NULL) {
+        env->SetLongArrayRegion(result, 0, METRIC_COUNT, (const jlong*)metrics);
+    }
+    return result;
+}
+
 extern "C" JNIEXPORT void JNICALL
 Java_one_profiler_AsyncProfiler_filterThread0(JNIEnv* env, jobject unused, jthread thread, jboolean enable) {
     int thread_id;
@@ -122,6 +202,91 @@ Java_one_profiler_AsyncProfiler_filterThread0(JNIEnv* env, jobject unused, jthre
     }
 }
 
+extern "C" JNIEXPORT void JNICALL
+Java_one_profiler_AsyncProfiler_setLoopListener0(JNIEnv* env, jobject unused, jobject listener) {
+    Profiler::instance()->setLoopListener(env, listener);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_one_profiler_AsyncProfiler_filterThreads0(JNIEnv* env, jobject unused, jobjectArray threads, jboolean enable) {
+    if (threads == NULL || !VMThread::hasNativeId()) {
+        return;
+    }
+
+    jvmtiEnv* jvmti = VM::jvmti();
+    ThreadFilter* thread_filter = Profiler::instance()->threadFilter();
+    jint count = env->GetArrayLength(threads);
+
+    for (jint i = 0; i < count; i++) {
+        jthread thread = (jthread)env->GetObjectArrayElement(threads, i);
+        if (thread == NULL) {
+            continue;
+        }
+
+        // Thread monitor prevents a race with a thread state change, like synchronized (thread) in Java
+        jint state;
+        env->MonitorEnter(thread);
+        if (jvmti->GetThreadState(thread, &state) == 0 && (state & JVMTI_THREAD_STATE_ALIVE)) {
+            VMThread* vmThread = VMThread::fromJavaThread(env, thread);
+            if (vmThread != NULL) {
+                if (enable) {
+                    thread_filter->add(vmThread->osThreadId());
+                } else {
+                    thread_filter->remove(vmThread->osThreadId());
+                }
+            }
+        }
+        env->MonitorExit(thread);
+        env->DeleteLocalRef(thread);
+    }
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_one_profiler_AsyncProfiler_addThreadPattern0(JNIEnv* env, jobject unused, jstring pattern) {
+    if (pattern != NULL) {
+        const char* pattern_str = env->GetStringUTFChars(pattern, NULL);
+        Profiler::instance()->addThreadPattern(env, pattern_str);
+        env->ReleaseStringUTFChars(pattern, pattern_str);
+    }
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_one_profiler_AsyncProfiler_addThreadGroup0(JNIEnv* env, jobject unused, jobject group) {
+    if (group != NULL) {
+        Profiler::instance()->addThreadGroup(env, group);
+    }
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_one_profiler_AsyncProfiler_clearThreadRules0(JNIEnv* env, jobject unused) {
+    Profiler::instance()->clearThreadRules(env);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_one_profiler_AsyncProfiler_setContext0(JNIEnv* env, jobject unused, jlong span_id, jlong tag) {
+    Profiler::instance()->contexts()->set(OS::threadId(), span_id, tag);
+}
+
+extern "C" JNIEXPORT jobject JNICALL
+Java_one_profiler_AsyncProfiler_getContextBuffer0(JNIEnv* env, jobject unused) {
+    Context* context = Profiler::instance()->contexts()->slot(OS::threadId());
+    if (context == NULL) {
+        return NULL;
+    }
+    // The buffer is requested once per thread, when no ProfilingScope of this thread is open yet.
+    // A stale scope may be left by a previous thread with the same ID
+    context->scope = 0;
+    return env->NewDirectByteBuffer(context, sizeof(Context));
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_one_profiler_AsyncProfiler_registerScope0(JNIEnv* env, jobject unused, jstring name) {
+    const char* name_str = env->GetStringUTFChars(name, NULL);
+    u32 scope = Profiler::instance()->contexts()->registerScope(name_str);
+    env->ReleaseStringUTFChars(name, name_str);
+    return (jint)scope;
+}
+
 
 #define F(name, sig)  {(char*)#name, (char*)sig, (void*)Java_one_profiler_AsyncProfiler_##name}
 
@@ -129,8 +294,18 @@ static const JNINativeMethod profiler_natives[] = {
     F(start0,        "(Ljava/lang/String;JZ)V"),
     F(stop0,         "()V"),
     F(execute0,      "(Ljava/lang/String;)Ljava/lang/String;"),
+    F(execute1,      "(Ljava/lang/String;Ljava/nio/channels/WritableByteChannel;)V"),
     F(getSamples,    "()J"),
+    F(getMetrics0,   "()[J"),
+    F(setLoopListener0,  "(Ljava/lang/Object;)V"),
     F(filterThread0, "(Ljava/lang/Thread;Z)V"),
+    F(filterThreads0,    "([Ljava/lang/Thread;Z)V"),
+    F(addThreadPattern0, "(Ljava/lang/String;)V"),
+    F(addThreadGroup0,   "(Ljava/lang/ThreadGroup;)V"),
+    F(clearThreadRules0, "()V"),
+    F(setContext0,   "(JJ)V"),
+    F(getContextBuffer0, "()Ljava/nio/ByteBuffer;"),
+    F(registerScope0,    "(Ljava/lang/String;)I"),
 };
 
 #undef F
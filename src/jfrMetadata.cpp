@@ -90,7 +90,9 @@ JfrMetadata::JfrMetadata() : Element("root") {
                 << field("startTime", T_LONG, "Start Time", F_TIME_TICKS)
                 << field("sampledThread", T_THREAD, "Thread", F_CPOOL)
                 << field("stackTrace", T_STACK_TRACE, "Stack Trace", F_CPOOL)
-                << field("state", T_THREAD_STATE, "Thread State", F_CPOOL))
+                << field("state", T_THREAD_STATE, "Thread State", F_CPOOL)
+                << field("spanId", T_LONG, "Span ID")
+                << field("tag", T_LONG, "Context Tag"))
 
             << (type("jdk.ObjectAllocationInNewTLAB", T_ALLOC_IN_NEW_TLAB, "Allocation in new TLAB")
                 << category("Java Application")
@@ -99,7 +101,9 @@ JfrMetadata::JfrMetadata() : Element("root") {
                 << field("stackTrace", T_STACK_TRACE, "Stack Trace", F_CPOOL)
                 << field("objectClass", T_CLASS, "Object Class", F_CPOOL)
                 << field("allocationSize", T_LONG, "Allocation Size", F_BYTES)
-                << field("tlabSize", T_LONG, "TLAB Size", F_BYTES))
+                << field("tlabSize", T_LONG, "TLAB Size", F_BYTES)
+                << field("spanId", T_LONG, "Span ID")
+                << field("tag", T_LONG, "Context Tag"))
 
             << (type("jdk.ObjectAllocationOutsideTLAB", T_ALLOC_OUTSIDE_TLAB, "Allocation outside TLAB")
                 << category("Java Application")
@@ -107,7 +111,9 @@ JfrMetadata::JfrMetadata() : Element("root") {
                 << field("eventThread", T_THREAD, "Event Thread", F_CPOOL)
                 << field("stackTrace", T_STACK_TRACE, "Stack Trace", F_CPOOL)
                 << field("objectClass", T_CLASS, "Object Class", F_CPOOL)
-                << field("allocationSize", T_LONG, "Allocation Size", F_BYTES))
+                << field("allocationSize", T_LONG, "Allocation Size", F_BYTES)
+                << field("spanId", T_LONG, "Span ID")
+                << field("tag", T_LONG, "Context Tag"))
 
             << (type("jdk.JavaMonitorEnter", T_MONITOR_ENTER, "Java Monitor Blocked")
                 << category("Java Application")
@@ -117,7 +123,9 @@ JfrMetadata::JfrMetadata() : Element("root") {
                 << field("stackTrace", T_STACK_TRACE, "Stack Trace", F_CPOOL)
                 << field("monitorClass", T_CLASS, "Monitor Class", F_CPOOL)
                 << field("previousOwner", T_THREAD, "Previous Monitor Owner", F_CPOOL)
-                << field("address", T_LONG, "Monitor Address", F_ADDRESS))
+                << field("address", T_LONG, "Monitor Address", F_ADDRESS)
+                << field("spanId", T_LONG, "Span ID")
+                << field("tag", T_LONG, "Context Tag"))
 
             << (type("jdk.ThreadPark", T_THREAD_PARK, "Java Thread Park")
                 << category("Java Application")
@@ -128,7 +136,9 @@ JfrMetadata::JfrMetadata() : Element("root") {
                 << field("parkedClass", T_CLASS, "Class Parked On", F_CPOOL)
                 << field("timeout", T_LONG, "Park Timeout", F_DURATION_NANOS)
                 << field("until", T_LONG, "Park Until", F_TIME_MILLIS)
-                << field("address", T_LONG, "Address of Object Parked", F_ADDRESS))
+                << field("address", T_LONG, "Address of Object Parked", F_ADDRESS)
+                << field("spanId", T_LONG, "Span ID")
+                << field("tag", T_LONG, "Context Tag"))
 
             << (type("jdk.CPULoad", T_CPU_LOAD, "CPU Load")
                 << category("Operating System", "Processor")
@@ -20,6 +20,7 @@
 
 LinearAllocator::LinearAllocator(size_t chunk_size) {
     _chunk_size = chunk_size;
+    _reserved_memory = 0;
     _reserve = _tail = allocateChunk(NULL);
 }
 
@@ -60,17 +61,24 @@ void* LinearAllocator::alloc(size_t size) {
     return NULL;
 }
 
+// Memory reserved for chunks, including the spare one
+size_t LinearAllocator::usedMemory() {
+    return _reserved_memory;
+}
+
 Chunk* LinearAllocator::allocateChunk(Chunk* current) {
     Chunk* chunk = (Chunk*)OS::safeAlloc(_chunk_size);
     if (chunk != NULL) {
         chunk->prev = current;
         chunk->offs = sizeof(Chunk);
+        __sync_fetch_and_add(&_reserved_memory, _chunk_size);
     }
     return chunk;
 }
 
 void LinearAllocator::freeChunk(Chunk* current) {
     OS::safeFree(current, _chunk_size);
+    __sync_fetch_and_sub(&_reserved_memory, _chunk_size);
 }
 
 void LinearAllocator::reserveChunk(Chunk* current) {
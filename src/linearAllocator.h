@@ -32,6 +32,7 @@ class LinearAllocator {
     size_t _chunk_size;
     Chunk* _tail;
     Chunk* _reserve;
+    volatile size_t _reserved_memory;
 
     Chunk* allocateChunk(Chunk* current);
     void freeChunk(Chunk* current);
@@ -45,6 +46,8 @@ class LinearAllocator {
     void clear();
 
     void* alloc(size_t size);
+
+    size_t usedMemory();
 };
 
 #endif // _LINEARALLOCATOR_H
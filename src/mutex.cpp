@@ -28,6 +28,23 @@ void Mutex::lock() {
     pthread_mutex_lock(&_mutex);
 }
 
+bool Mutex::tryLock() {
+    return pthread_mutex_trylock(&_mutex) == 0;
+}
+
 void Mutex::unlock() {
     pthread_mutex_unlock(&_mutex);
 }
+
+WaitableMutex::WaitableMutex() : Mutex() {
+    pthread_cond_init(&_cond, NULL);
+}
+
+bool WaitableMutex::waitUntil(u64 wall_time_micros) {
+    struct timespec ts = {(time_t)(wall_time_micros / 1000000), (long)(wall_time_micros % 1000000) * 1000};
+    return pthread_cond_timedwait(&_cond, &_mutex, &ts) == 0;
+}
+
+void WaitableMutex::notify() {
+    pthread_cond_signal(&_cond);
+}
@@ -18,20 +18,34 @@
 #define _MUTEX_H
 
 #include <pthread.h>
+#include "arch.h"
 
 
 class Mutex {
-  private:
+  protected:
     pthread_mutex_t _mutex;
 
   public:
     Mutex();
 
     void lock();
+    bool tryLock();
     void unlock();
 };
 
 
+class WaitableMutex : public Mutex {
+  private:
+    pthread_cond_t _cond;
+
+  public:
+    WaitableMutex();
+
+    // Must be called with the mutex held. Returns false on timeout
+    bool waitUntil(u64 wall_time_micros);
+    void notify();
+};
+
 class MutexLocker {
   private:
     Mutex* _mutex;
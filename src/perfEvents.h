@@ -45,6 +45,15 @@ class PerfEvents : public Engine {
     const char* title();
     const char* units();
 
+    long interval() {
+        return _interval;
+    }
+
+    // Every thread picks up the new period on its next sample
+    void setInterval(long interval) {
+        _interval = interval;
+    }
+
     static void resetBuffer(int tid);
 
     static bool supported();
@@ -491,6 +491,7 @@ class PerfEvent : public SpinLock {
   private:
     int _fd;
     struct perf_event_mmap_page* _page;
+    long _period;
 
     friend class PerfEvents;
 };
@@ -580,6 +581,7 @@ int PerfEvents::createForThread(int tid) {
 
     _events[tid].reset();
     _events[tid]._page = (struct perf_event_mmap_page*)page;
+    _events[tid]._period = attr.sample_period;
 
     struct f_owner_ex ex;
     ex.type = F_OWNER_TID;
@@ -639,6 +641,15 @@ void PerfEvents::signalHandler(int signo, siginfo_t* siginfo, void* ucontext) {
         resetBuffer(OS::threadId());
     }
 
+    // The interval may have been changed by the adaptive overhead control
+    PerfEvent* event = &_events[OS::threadId()];
+    long interval = _interval;
+    if (event->_period != interval) {
+        u64 period = interval;
+        ioctl(siginfo->si_fd, PERF_EVENT_IOC_PERIOD, &period);
+        event->_period = interval;
+    }
+
     ioctl(siginfo->si_fd, PERF_EVENT_IOC_RESET, 0);
     ioctl(siginfo->si_fd, PERF_EVENT_IOC_REFRESH, 1);
 }
@@ -23,6 +23,7 @@
 #include <stdlib.h>
 #include <string.h>
 #include <sys/param.h>
+#include <sys/stat.h>
 #include "profiler.h"
 #include "perfEvents.h"
 #include "allocTracer.h"
@@ -123,6 +124,11 @@ void Profiler::addRuntimeStub(const void* address, int length, const char* name)
 void Profiler::onThreadStart(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread) {
     int tid = OS::threadId();
     _thread_filter.remove(tid);
+    // A previous thread with the same ID may have ended while thread events were disabled
+    _contexts.clear(tid);
+    if (_thread_rules > 0 && _thread_filter.enabled() && matchThreadRules(jvmti, jni, thread)) {
+        _thread_filter.add(tid);
+    }
     updateThreadName(jvmti, jni, thread);
 
     if (_engine == &perf_events) {
@@ -133,6 +139,8 @@ void Profiler::onThreadStart(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread) {
 void Profiler::onThreadEnd(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread) {
     int tid = OS::threadId();
     _thread_filter.remove(tid);
+    // Thread IDs are reused, so a new thread must not inherit the context
+    _contexts.clear(tid);
     updateThreadName(jvmti, jni, thread);
 
     if (_engine == &perf_events) {
@@ -592,10 +600,91 @@ AddressType Profiler::getAddressType(instruction_t* pc) {
     return ADDR_UNKNOWN;
 }
 
+// Distribution of time spent in recordSample, bucket N counts samples that took [2^N, 2^(N+1)) ns
+void Profiler::recordHandlerTime(u64 start) {
+    u64 elapsed = OS::nanotime() - start;
+    int bucket = 63 - __builtin_clzll(elapsed | 1);
+    atomicInc(_handler_time, elapsed);
+    atomicInc(_handler_time_histogram[bucket < HANDLER_TIME_BUCKETS ? bucket : HANDLER_TIME_BUCKETS - 1]);
+}
+
+Error Profiler::startOverheadControl(Arguments& args) {
+    _overhead = args._overhead;
+    _base_interval = _engine->interval();
+    if (_overhead <= 0 || _base_interval <= 0) {
+        return Error::OK;
+    }
+
+    _overhead_running = true;
+    if (pthread_create(&_overhead_thread, NULL, overheadThreadEntry, this) != 0) {
+        _overhead_running = false;
+        return Error("Unable to create overhead control thread");
+    }
+    return Error::OK;
+}
+
+void Profiler::stopOverheadControl() {
+    if (_overhead_running) {
+        _overhead_running = false;
+        pthread_kill(_overhead_thread, WAKEUP_SIGNAL);
+        pthread_join(_overhead_thread, NULL);
+    }
+}
+
+// Once a second, compares CPU time spent in signal handlers with the CPU time available to the process,
+// and scales the sampling interval so that the overhead stays within the budget.
+// Overhead is roughly inversely proportional to the interval, hence the multiplicative steps.
+void Profiler::overheadLoop() {
+    long cpus = sysconf(_SC_NPROCESSORS_ONLN);
+    if (cpus < 1) cpus = 1;
+
+    u64 prev_time = OS::nanotime();
+    u64 prev_handler_time = loadAcquire(_handler_time);
+
+    while (_overhead_running) {
+        // Sleep may be interrupted by profiling signals
+        u64 current_time;
+        while ((current_time = OS::nanotime()) - prev_time < OVERHEAD_CHECK_PERIOD && _overhead_running) {
+            OS::sleep(OVERHEAD_CHECK_PERIOD - (current_time - prev_time));
+        }
+        if (!_overhead_running) {
+            break;
+        }
+
+        u64 handler_time = loadAcquire(_handler_time);
+        double overhead = (handler_time - prev_handler_time) * 100.0 / ((double)(current_time - prev_time) * cpus);
+        prev_time = current_time;
+        prev_handler_time = handler_time;
+
+        long interval = _engine->interval();
+        long next = interval;
+        if (overhead > _overhead) {
+            next = std::min(_base_interval * MAX_INTERVAL_SCALE, (long)(interval * (overhead / _overhead)) + 1);
+        } else if (overhead < _overhead / 4 && interval > _base_interval) {
+            next = std::max(_base_interval, interval / 2);
+        }
+
+        if (next != interval) {
+            _engine->setInterval(next);
+            _jfr.recordInterval(next);
+        }
+    }
+}
+
 void Profiler::recordSample(void* ucontext, u64 counter, jint event_type, Event* event) {
+    int tid = OS::threadId();
+    Context context = _contexts.get(tid);
+    if (_scoped && context.scope == 0) {
+        // Only samples inside ProfilingScope are collected
+        if (event_type == 0 && _engine == &perf_events) {
+            PerfEvents::resetBuffer(tid);
+        }
+        return;
+    }
+
+    u64 start = OS::nanotime();
     atomicInc(_total_samples);
 
-    int tid = OS::threadId();
     u32 lock_index = getLockIndex(tid);
     if (!_locks[lock_index].tryLock() &&
         !_locks[lock_index = (lock_index + 1) % CONCURRENCY_LEVEL].tryLock() &&
@@ -608,6 +697,7 @@ void Profiler::recordSample(void* ucontext, u64 counter, jint event_type, Event*
             // Need to reset PerfEvents ring buffer, even though we discard the collected trace
             PerfEvents::resetBuffer(tid);
         }
+        recordHandlerTime(start);
         return;
     }
 
@@ -650,17 +740,204 @@ void Profiler::recordSample(void* ucontext, u64 counter, jint event_type, Event*
     //     frames[first_java_frame].bci = 0;
     // }
 
+    if (context.scope != 0) {
+        const char* scope_name = _contexts.scopeName(context.scope);
+        if (scope_name != NULL) {
+            num_frames += makeEventFrame(frames + num_frames, BCI_ERROR, (uintptr_t)scope_name);
+        }
+    }
+
     if (_add_thread_frame) {
         num_frames += makeEventFrame(frames + num_frames, BCI_THREAD_ID, tid);
     }
     if (_add_sched_frame) {
         num_frames += makeEventFrame(frames + num_frames, BCI_ERROR, (uintptr_t)OS::schedPolicy());
     }
+    if (_add_context_frame && context.tag != 0) {
+        num_frames += makeEventFrame(frames + num_frames, BCI_CONTEXT_TAG, (uintptr_t)context.tag);
+    }
 
     u32 call_trace_id = _call_trace_storage.put(num_frames, frames, counter);
-    _jfr.recordEvent(lock_index, tid, call_trace_id, event_type, event, counter);
+    _jfr.recordEvent(lock_index, tid, call_trace_id, event_type, event, &context, counter);
 
     _locks[lock_index].unlock();
+    recordHandlerTime(start);
+}
+
+Error Profiler::startLoop(Arguments& args) {
+    if (args._loop <= 0) {
+        return Error::OK;
+    }
+
+    // Loop arguments are used after the command that started profiling completes
+    if (!_loop_args.copy(args)) {
+        return Error("Not enough memory to start profiling loop");
+    }
+    _loop_file = args._file;
+    _loop_history.clear();
+    _loop_history_size = 0;
+
+    _loop_lock.lock();
+    u64 generation = ++_loop_generation;
+    _loop_lock.unlock();
+
+    pthread_t thread;
+    if (pthread_create(&thread, NULL, loopThreadEntry, (void*)(uintptr_t)generation) != 0) {
+        _loop_args._loop = 0;
+        return Error("Unable to create loop thread");
+    }
+
+    // Not joined on stop, since the thread may be waiting for the state lock or running the listener
+    pthread_detach(thread);
+    return Error::OK;
+}
+
+void Profiler::stopLoop() {
+    if (_loop_args._loop <= 0) {
+        return;
+    }
+
+    completeLoopFile();
+    _loop_file.clear();
+    _loop_args._loop = 0;
+
+    _loop_lock.lock();
+    _loop_generation++;
+    _loop_lock.notify();
+    _loop_lock.unlock();
+}
+
+// Switches JFR output to the next file of the loop without stopping the profiler.
+// Samples keep going to the current file until the new one is ready
+void Profiler::rotateLoop(u64 generation) {
+    MutexLocker ml(_state_lock);
+
+    _loop_lock.lock();
+    bool current = _loop_generation == generation;
+    _loop_lock.unlock();
+    if (!current || _state != RUNNING) {
+        return;
+    }
+
+    char file[PATH_MAX];
+    Arguments::expandFilePattern(file, sizeof(file), _loop_args._file_pattern);
+    if (_loop_file == file) {
+        // Timestamp has not changed since the previous rotation
+        return;
+    }
+
+    updateJavaThreadNames();
+    updateNativeThreadNames();
+
+    _loop_args._file = file;
+    Error error = _jfr.openNext(_loop_args);
+    _loop_args._file = NULL;
+    if (error) {
+        Log::warn("Failed to rotate %s: %s", _loop_file.c_str(), error.message());
+        return;
+    }
+
+    finishJfrChunk(true);
+
+    completeLoopFile();
+    _loop_file = file;
+}
+
+// Applies retention limits to completed files of the loop, and queues the just completed file
+// to be reported to the listener
+void Profiler::completeLoopFile() {
+    struct stat st;
+    u64 size = stat(_loop_file.c_str(), &st) == 0 ? st.st_size : 0;
+    _loop_history.push_back(std::make_pair(_loop_file, size));
+    _loop_history_size += size;
+
+    // The last completed file is kept regardless of the limits
+    while (_loop_history.size() > 1 &&
+           ((_loop_args._loop_files > 0 && _loop_history.size() > (size_t)_loop_args._loop_files) ||
+            (_loop_args._loop_size > 0 && _loop_history_size > (u64)_loop_args._loop_size))) {
+        unlink(_loop_history.front().first.c_str());
+        _loop_history_size -= _loop_history.front().second;
+        _loop_history.pop_front();
+    }
+
+    MutexLocker ml(_loop_lock);
+    if (_loop_listener != NULL) {
+        _loop_completed.push_back(_loop_file);
+        _loop_lock.notify();
+    }
+}
+
+// Called with _loop_lock held; the lock is released while the Java listener runs
+void Profiler::notifyLoopListener(JNIEnv* jni) {
+    std::vector<std::string> files;
+    files.swap(_loop_completed);
+    jobject listener = _loop_listener != NULL && jni != NULL ? jni->NewLocalRef(_loop_listener) : NULL;
+    jmethodID method = _loop_listener_method;
+    _loop_lock.unlock();
+
+    if (listener != NULL) {
+        for (size_t i = 0; i < files.size(); i++) {
+            jstring file = jni->NewStringUTF(files[i].c_str());
+            jni->CallVoidMethod(listener, method, file);
+            if (jni->ExceptionCheck()) {
+                jni->ExceptionDescribe();
+            }
+            jni->DeleteLocalRef(file);
+        }
+        jni->DeleteLocalRef(listener);
+    }
+
+    _loop_lock.lock();
+}
+
+// Rotates the output every 'loop' seconds and reports completed files to the listener.
+// Exits after reporting the last file, once stopLoop() has changed the generation
+void Profiler::loopThread(u64 generation) {
+    JNIEnv* jni = VM::jni();
+
+    _state_lock.lock();
+    u64 period = (u64)_loop_args._loop * 1000000;
+    _state_lock.unlock();
+
+    u64 deadline = OS::micros() + period;
+
+    _loop_lock.lock();
+    while (true) {
+        if (!_loop_completed.empty()) {
+            notifyLoopListener(jni);
+        } else if (_loop_generation != generation) {
+            break;
+        } else if (OS::micros() >= deadline) {
+            _loop_lock.unlock();
+            rotateLoop(generation);
+            _loop_lock.lock();
+
+            u64 current_time = OS::micros();
+            while (deadline <= current_time) {
+                deadline += period;
+            }
+        } else {
+            _loop_lock.waitUntil(deadline);
+        }
+    }
+    _loop_lock.unlock();
+}
+
+void Profiler::setLoopListener(JNIEnv* jni, jobject listener) {
+    jmethodID method = NULL;
+    if (listener != NULL) {
+        method = jni->GetMethodID(jni->GetObjectClass(listener), "fileCompleted", "(Ljava/lang/String;)V");
+        if (method == NULL) {
+            return;
+        }
+    }
+
+    MutexLocker ml(_loop_lock);
+    if (_loop_listener != NULL) {
+        jni->DeleteGlobalRef(_loop_listener);
+    }
+    _loop_listener = listener != NULL ? jni->NewGlobalRef(listener) : NULL;
+    _loop_listener_method = method;
 }
 
 void Profiler::writeLog(LogLevel level, const char* message) {
@@ -866,6 +1143,96 @@ void Profiler::updateJavaThreadNames() {
     }
 }
 
+bool Profiler::matchThreadRules(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread) {
+    jvmtiThreadInfo thread_info;
+    if (jvmti->GetThreadInfo(thread, &thread_info) != 0) {
+        return false;
+    }
+
+    MutexLocker ml(_thread_rules_lock);
+    bool matched = false;
+    if (thread_info.name != NULL) {
+        for (size_t i = 0; i < _thread_patterns.size() && !matched; i++) {
+            matched = _thread_patterns[i].matches(thread_info.name);
+        }
+        jvmti->Deallocate((unsigned char*)thread_info.name);
+    }
+
+    // A thread belongs to the registered group, if it is in the group itself or in any of its subgroups
+    jthreadGroup group = thread_info.thread_group;
+    while (group != NULL) {
+        for (size_t i = 0; i < _thread_groups.size() && !matched; i++) {
+            matched = jni->IsSameObject(group, _thread_groups[i]);
+        }
+
+        jthreadGroup parent = NULL;
+        jvmtiThreadGroupInfo group_info;
+        if (!matched && !_thread_groups.empty() && jvmti->GetThreadGroupInfo(group, &group_info) == 0) {
+            jvmti->Deallocate((unsigned char*)group_info.name);
+            parent = group_info.parent;
+        }
+        jni->DeleteLocalRef(group);
+        group = parent;
+    }
+
+    if (thread_info.context_class_loader != NULL) {
+        jni->DeleteLocalRef(thread_info.context_class_loader);
+    }
+    return matched;
+}
+
+void Profiler::applyThreadRules(jvmtiEnv* jvmti, JNIEnv* jni) {
+    if (_thread_rules == 0 || !_thread_filter.enabled() || !VMThread::hasNativeId()) {
+        return;
+    }
+
+    jint thread_count;
+    jthread* thread_objects;
+    if (jvmti->GetAllThreads(&thread_count, &thread_objects) != 0) {
+        return;
+    }
+
+    JitWriteProtection jit(true);  // workaround for JDK-8262896
+    for (int i = 0; i < thread_count; i++) {
+        VMThread* vm_thread = VMThread::fromJavaThread(jni, thread_objects[i]);
+        if (vm_thread != NULL && matchThreadRules(jvmti, jni, thread_objects[i])) {
+            _thread_filter.add(vm_thread->osThreadId());
+        }
+        jni->DeleteLocalRef(thread_objects[i]);
+    }
+
+    jvmti->Deallocate((unsigned char*)thread_objects);
+}
+
+void Profiler::addThreadPattern(JNIEnv* jni, const char* pattern) {
+    _thread_rules_lock.lock();
+    _thread_patterns.push_back(Matcher(pattern));
+    _thread_rules++;
+    _thread_rules_lock.unlock();
+
+    // Threads started later are matched in onThreadStart; existing threads are matched right away
+    applyThreadRules(VM::jvmti(), jni);
+}
+
+void Profiler::addThreadGroup(JNIEnv* jni, jobject group) {
+    _thread_rules_lock.lock();
+    _thread_groups.push_back(jni->NewGlobalRef(group));
+    _thread_rules++;
+    _thread_rules_lock.unlock();
+
+    applyThreadRules(VM::jvmti(), jni);
+}
+
+void Profiler::clearThreadRules(JNIEnv* jni) {
+    MutexLocker ml(_thread_rules_lock);
+    for (size_t i = 0; i < _thread_groups.size(); i++) {
+        jni->DeleteGlobalRef(_thread_groups[i]);
+    }
+    _thread_groups.clear();
+    _thread_patterns.clear();
+    _thread_rules = 0;
+}
+
 void Profiler::updateNativeThreadNames() {
     if (_update_thread_names) {
         ThreadList* thread_list = OS::listThreads();
@@ -979,11 +1346,15 @@ Error Profiler::start(Arguments& args, bool reset) {
         // Reset counters
         _total_samples = 0;
         memset(_failures, 0, sizeof(_failures));
+        _handler_time = 0;
+        memset(_handler_time_histogram, 0, sizeof(_handler_time_histogram));
+        _active_nanos = 0;
 
         // Reset dicrionaries and bitmaps
         _class_map.clear();
         _thread_filter.clear();
         _call_trace_storage.clear();
+        resetDelta();
 
         // Reset thread names and IDs
         MutexLocker ml(_thread_names_lock);
@@ -1013,9 +1384,13 @@ Error Profiler::start(Arguments& args, bool reset) {
     }
 
     _add_thread_frame = args._threads && args._output != OUTPUT_JFR;
+    _add_context_frame = args._tags && args._output != OUTPUT_JFR;
+    _scoped = args._scoped;
     _add_sched_frame = args._sched;
     _update_thread_names = args._threads || args._output == OUTPUT_JFR;
     _thread_filter.init(args._filter);
+    applyThreadRules(VM::jvmti(), VM::jni());
+    _call_trace_storage.setMemoryLimit(args._trace_mem);
 
     _engine = selectEngine(args._event);
     _cstack = args._cstack;
@@ -1060,13 +1435,28 @@ Error Profiler::start(Arguments& args, bool reset) {
         }
     }
 
+    error = startOverheadControl(args);
+    if (error) {
+        goto error4;
+    }
+
+    error = startLoop(args);
+    if (error) {
+        stopOverheadControl();
+        goto error4;
+    }
+
     // Thread events might be already enabled by PerfEvents::start
     switchThreadEvents(JVMTI_ENABLE);
 
     _state = RUNNING;
     _start_time = time(NULL);
+    _start_nanos = OS::nanotime();
     return Error::OK;
 
+error4:
+    if (_event_mask & EM_LOCK) lock_tracer.stop();
+
 error3:
     if (_event_mask & EM_ALLOC) alloc_tracer.stop();
 
@@ -1091,6 +1481,7 @@ Error Profiler::stop() {
     }
 
     uninstallTraps();
+    stopOverheadControl();
 
     if (_event_mask & EM_LOCK) lock_tracer.stop();
     if (_event_mask & EM_ALLOC) alloc_tracer.stop();
@@ -1106,12 +1497,44 @@ Error Profiler::stop() {
     lockAll();
     _jfr.stop();
     unlockAll();
+    stopLoop();
 
     FdTransferClient::closePeer();
+    _active_nanos += OS::nanotime() - _start_nanos;
     _state = IDLE;
     return Error::OK;
 }
 
+// Monitoring must not wait behind a long dump. Counters are read without locks;
+// only the call trace storage, which may be reset or evicted concurrently, needs the state lock.
+// If the lock is busy, storage metrics of the previous call are reported
+void Profiler::getMetrics(u64* metrics) {
+    if (_state_lock.tryLock()) {
+        _last_metrics[METRIC_TABLE_MEMORY] = _call_trace_storage.tableMemory();
+        _last_metrics[METRIC_TRACE_MEMORY] = _call_trace_storage.traceMemory();
+        _last_metrics[METRIC_TRACE_COUNT] = _call_trace_storage.size();
+        _last_metrics[METRIC_TABLE_CAPACITY] = _call_trace_storage.capacity();
+        _last_metrics[METRIC_TRACE_OVERFLOWS] = _call_trace_storage.overflows();
+        _last_metrics[METRIC_TRACE_EVICTIONS] = _call_trace_storage.evictions();
+        _state_lock.unlock();
+    }
+
+    metrics[METRIC_SAMPLES] = _total_samples;
+    metrics[METRIC_ACTIVE_TIME] = _active_nanos + (_state == RUNNING ? OS::nanotime() - _start_nanos : 0);
+    metrics[METRIC_HANDLER_TIME] = _handler_time;
+    for (int i = METRIC_TABLE_MEMORY; i < METRIC_JFR_FLUSHES; i++) {
+        metrics[i] = _last_metrics[i];
+    }
+    metrics[METRIC_JFR_FLUSHES] = FlightRecorder::flushes();
+    metrics[METRIC_JFR_BYTES] = FlightRecorder::flushedBytes();
+    for (int i = 0; i < ASGCT_FAILURE_TYPES; i++) {
+        metrics[METRIC_FAILURES + i] = _failures[i];
+    }
+    for (int i = 0; i < HANDLER_TIME_BUCKETS; i++) {
+        metrics[METRIC_HANDLER_HISTOGRAM + i] = _handler_time_histogram[i];
+    }
+}
+
 Error Profiler::check(Arguments& args) {
     MutexLocker ml(_state_lock);
     if (_state > IDLE) {
@@ -1143,11 +1566,40 @@ Error Profiler::flushJfr() {
     updateJavaThreadNames();
     updateNativeThreadNames();
 
+    finishJfrChunk(false);
+    return Error::OK;
+}
+
+// Completes the current JFR chunk, or the whole file when switching to the next one.
+// Sampling pauses only while buffers or generations of call traces are swapped;
+// the chunk is written out without profiler locks
+void Profiler::finishJfrChunk(bool next_file) {
+    // Call traces not sampled since the previous chunk are evicted once the storage grows
+    // beyond its memory limit, since JFR does not refer to them anymore
+    bool evict = _jfr.active() && _call_trace_storage.needsEviction();
+    if (evict) {
+        _call_trace_storage.prepareEviction();
+    }
+
     lockAll();
-    _jfr.flush();
+    if (next_file) {
+        _jfr.switchNext();
+    } else {
+        _jfr.switchBuffers();
+    }
+    if (evict) {
+        _call_trace_storage.evict();
+        // Evicted traces will never be updated again, so start delta dumps over
+        resetDelta();
+    }
     unlockAll();
 
-    return Error::OK;
+    if (next_file) {
+        _jfr.closePrevious();
+    } else {
+        _jfr.flush();
+    }
+    _call_trace_storage.releaseRetired();
 }
 
 Error Profiler::dump(std::ostream& out, Arguments& args) {
@@ -1174,11 +1626,16 @@ Error Profiler::dump(std::ostream& out, Arguments& args) {
         case OUTPUT_TEXT:
             dumpText(out, args);
             break;
+        case OUTPUT_BINARY:
+            if (args._delta && _jfr.active()) {
+                // JFR resets sample counts on every chunk, so increments cannot be computed
+                return Error("binary=delta cannot be used along with JFR output");
+            }
+            dumpBinary(out, args);
+            break;
         case OUTPUT_JFR:
             if (_state == RUNNING) {
-                lockAll();
-                _jfr.flush();
-                unlockAll();
+                finishJfrChunk(false);
             }
             break;
         default:
@@ -1259,7 +1716,11 @@ void Profiler::dumpFlameGraph(std::ostream& out, Arguments& args, bool tree) {
 
         Trie* f = flamegraph.root();
         if (args._reverse) {
-            // Thread frames always come first
+            // Context and thread frames always come first
+            if (_add_context_frame && trace->frames[num_frames - 1].bci == BCI_CONTEXT_TAG) {
+                const char* frame_name = fn.name(trace->frames[--num_frames]);
+                f = f->addChild(frame_name, samples);
+            }
             if (_add_sched_frame) {
                 const char* frame_name = fn.name(trace->frames[--num_frames]);
                 f = f->addChild(frame_name, samples);
@@ -1369,6 +1830,101 @@ void Profiler::dumpText(std::ostream& out, Arguments& args) {
     }
 }
 
+static void writeVarint(std::ostream& out, u64 value) {
+    char buf[10];
+    int len = 0;
+    while (value > 0x7f) {
+        buf[len++] = (char)(0x80 | (value & 0x7f));
+        value >>= 7;
+    }
+    buf[len++] = (char)value;
+    out.write(buf, len);
+}
+
+/*
+ * Dump the call trace table in a compact binary form,
+ * where all numbers are unsigned LEB128 varints:
+ *
+ * 'F' <length> <UTF-8 name>                            defines the next frame id, counting from 0
+ * 'T' <samples> <counter> <num_frames> <frame id>...   defines the next call trace id, the leaf frame first
+ * 'U' <trace id> <samples> <counter>                   update of a call trace reported earlier
+ * 'R'                                                  forget all frames and call traces reported earlier
+ *
+ * Every frame name is written once, before the first trace that refers to it.
+ * In delta mode, frame and trace ids persist across dumps until the profile is reset,
+ * and counters are the increments since the previous delta dump:
+ * unchanged traces are skipped, and known traces are sent as 'U' without frames.
+ */
+void Profiler::resetDelta() {
+    _delta_frames.clear();
+    _delta_trace_ids.clear();
+    _delta_traces.clear();
+    _delta_reset = true;
+}
+
+void Profiler::dumpBinary(std::ostream& out, Arguments& args) {
+    FrameName fn(args, args._style, _thread_names_lock, _thread_names);
+    std::map<std::string, u32> local_frames;
+    std::map<std::string, u32>& frame_ids = args._delta ? _delta_frames : local_frames;
+    std::vector<u32> trace_ids;
+
+    if (args._delta && _delta_reset) {
+        out << 'R';
+        _delta_reset = false;
+    }
+
+    std::map<u64, CallTraceSample> map;
+    _call_trace_storage.collectSamples(map);
+
+    for (std::map<u64, CallTraceSample>::const_iterator it = map.begin(); it != map.end(); ++it) {
+        CallTrace* trace = it->second.trace;
+        if (excludeTrace(&fn, trace)) continue;
+
+        u64 samples = it->second.samples;
+        u64 counter = it->second.counter;
+        if (args._delta) {
+            std::map<u64, u32>::const_iterator known = _delta_trace_ids.find(it->first);
+            if (known != _delta_trace_ids.end()) {
+                CallTraceSample& last = _delta_traces[known->second];
+                samples -= last.samples;
+                counter -= last.counter;
+                last = it->second;
+                if (samples == 0 && counter == 0) continue;
+
+                out << 'U';
+                writeVarint(out, known->second);
+                writeVarint(out, samples);
+                writeVarint(out, counter);
+                continue;
+            }
+            _delta_trace_ids[it->first] = _delta_traces.size();
+            _delta_traces.push_back(it->second);
+        }
+
+        trace_ids.clear();
+        for (int j = 0; j < trace->num_frames; j++) {
+            const char* frame_name = fn.name(trace->frames[j]);
+            std::pair<std::map<std::string, u32>::iterator, bool> entry =
+                frame_ids.insert(std::make_pair(std::string(frame_name), (u32)frame_ids.size()));
+            if (entry.second) {
+                size_t len = strlen(frame_name);
+                out << 'F';
+                writeVarint(out, len);
+                out.write(frame_name, len);
+            }
+            trace_ids.push_back(entry.first->second);
+        }
+
+        out << 'T';
+        writeVarint(out, samples);
+        writeVarint(out, counter);
+        writeVarint(out, trace_ids.size());
+        for (size_t j = 0; j < trace_ids.size(); j++) {
+            writeVarint(out, trace_ids[j]);
+        }
+    }
+}
+
 Error Profiler::runInternal(Arguments& args, std::ostream& out) {
     switch (args._action) {
         case ACTION_START:
@@ -17,17 +17,21 @@
 #ifndef _PROFILER_H
 #define _PROFILER_H
 
+#include <deque>
 #include <iostream>
 #include <map>
+#include <pthread.h>
 #include <time.h>
 #include "arch.h"
 #include "arguments.h"
 #include "callTraceStorage.h"
 #include "codeCache.h"
+#include "context.h"
 #include "dictionary.h"
 #include "engine.h"
 #include "event.h"
 #include "flightRecorder.h"
+#include "frameName.h"
 #include "log.h"
 #include "mutex.h"
 #include "spinLock.h"
@@ -41,9 +45,30 @@ const char FULL_VERSION_STRING[] =
     "Copyright 2016-2021 Andrei Pangin\n";
 
 const int MAX_NATIVE_FRAMES = 128;
-const int RESERVED_FRAMES   = 4;
+const int RESERVED_FRAMES   = 5;
 const int MAX_NATIVE_LIBS   = 2048;
 const int CONCURRENCY_LEVEL = 16;
+const int HANDLER_TIME_BUCKETS = 32;
+const u64 OVERHEAD_CHECK_PERIOD = 1000000000;
+const long MAX_INTERVAL_SCALE = 1024;
+
+// Layout of the array filled by Profiler::getMetrics
+enum Metric {
+    METRIC_SAMPLES,
+    METRIC_ACTIVE_TIME,
+    METRIC_HANDLER_TIME,
+    METRIC_TABLE_MEMORY,
+    METRIC_TRACE_MEMORY,
+    METRIC_TRACE_COUNT,
+    METRIC_TABLE_CAPACITY,
+    METRIC_TRACE_OVERFLOWS,
+    METRIC_TRACE_EVICTIONS,
+    METRIC_JFR_FLUSHES,
+    METRIC_JFR_BYTES,
+    METRIC_FAILURES,
+    METRIC_HANDLER_HISTOGRAM = METRIC_FAILURES + ASGCT_FAILURE_TYPES,
+    METRIC_COUNT = METRIC_HANDLER_HISTOGRAM + HANDLER_TIME_BUCKETS
+};
 
 
 enum AddressType {
@@ -82,7 +107,18 @@ class Profiler {
     Dictionary _class_map;
     Dictionary _symbol_map;
     ThreadFilter _thread_filter;
+    // Thread name patterns and thread groups to add new threads to the filter automatically
+    Mutex _thread_rules_lock;
+    std::vector<Matcher> _thread_patterns;
+    std::vector<jobject> _thread_groups;
+    volatile int _thread_rules;
+    ContextStorage _contexts;
     CallTraceStorage _call_trace_storage;
+    // Frames and call traces already reported by delta binary dumps
+    std::map<std::string, u32> _delta_frames;
+    std::map<u64, u32> _delta_trace_ids;
+    std::vector<CallTraceSample> _delta_traces;
+    bool _delta_reset;
     FlightRecorder _jfr;
     Engine* _engine;
     int _event_mask;
@@ -90,6 +126,30 @@ class Profiler {
 
     u64 _total_samples;
     u64 _failures[ASGCT_FAILURE_TYPES];
+    u64 _handler_time;
+    u64 _handler_time_histogram[HANDLER_TIME_BUCKETS];
+    u64 _start_nanos;
+    u64 _active_nanos;
+    // Metrics of the last getMetrics() call that could take the state lock
+    u64 _last_metrics[METRIC_COUNT];
+
+    // Adaptive interval control
+    double _overhead;
+    long _base_interval;
+    volatile bool _overhead_running;
+    pthread_t _overhead_thread;
+
+    // Continuous profiling loop: _loop_lock guards generation, listener and completed files
+    // to be reported; the rest is guarded by _state_lock
+    Arguments _loop_args;
+    std::string _loop_file;
+    std::deque<std::pair<std::string, u64> > _loop_history;
+    u64 _loop_history_size;
+    WaitableMutex _loop_lock;
+    u64 _loop_generation;
+    std::vector<std::string> _loop_completed;
+    jobject _loop_listener;
+    jmethodID _loop_listener_method;
 
     SpinLock _locks[CONCURRENCY_LEVEL];
     CallTraceBuffer* _calltrace_buffer[CONCURRENCY_LEVEL];
@@ -97,6 +157,8 @@ class Profiler {
     int _safe_mode;
     CStack _cstack;
     bool _add_thread_frame;
+    bool _add_context_frame;
+    bool _scoped;
     bool _add_sched_frame;
     bool _update_thread_names;
     volatile bool _thread_events_state;
@@ -149,6 +211,8 @@ class Profiler {
     void updateThreadName(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread);
     void updateJavaThreadNames();
     void updateNativeThreadNames();
+    bool matchThreadRules(jvmtiEnv* jvmti, JNIEnv* jni, jthread thread);
+    void applyThreadRules(jvmtiEnv* jvmti, JNIEnv* jni);
     bool excludeTrace(FrameName* fn, CallTrace* trace);
     void mangle(const char* name, char* buf, size_t size);
     Engine* selectEngine(const char* event_name);
@@ -157,10 +221,38 @@ class Profiler {
 
     void lockAll();
     void unlockAll();
+    void recordHandlerTime(u64 start);
+
+    Error startOverheadControl(Arguments& args);
+    void stopOverheadControl();
+    void overheadLoop();
+
+    static void* overheadThreadEntry(void* profiler) {
+        ((Profiler*)profiler)->overheadLoop();
+        return NULL;
+    }
+
+    void finishJfrChunk(bool next_file);
+
+    Error startLoop(Arguments& args);
+    void stopLoop();
+    void rotateLoop(u64 generation);
+    void completeLoopFile();
+    void notifyLoopListener(JNIEnv* jni);
+    void loopThread(u64 generation);
+
+    static void* loopThreadEntry(void* generation) {
+        VM::attachThread("Async-profiler Loop");
+        instance()->loopThread((u64)(uintptr_t)generation);
+        VM::detachThread();
+        return NULL;
+    }
 
     void dumpCollapsed(std::ostream& out, Arguments& args);
     void dumpFlameGraph(std::ostream& out, Arguments& args, bool tree);
     void dumpText(std::ostream& out, Arguments& args);
+    void resetDelta();
+    void dumpBinary(std::ostream& out, Arguments& args);
 
     static Profiler* const _instance;
 
@@ -170,11 +262,24 @@ class Profiler {
         _begin_trap(2),
         _end_trap(3),
         _thread_filter(),
+        _thread_rules(0),
+        _contexts(),
         _call_trace_storage(),
+        _delta_reset(false),
         _jfr(),
         _start_time(0),
+        _start_nanos(0),
+        _active_nanos(0),
+        _overhead(0),
+        _base_interval(0),
+        _overhead_running(false),
+        _loop_history_size(0),
+        _loop_generation(0),
+        _loop_listener(NULL),
+        _loop_listener_method(NULL),
         _max_stack_depth(0),
         _safe_mode(0),
+        _scoped(false),
         _thread_events_state(JVMTI_DISABLE),
         _jit_lock(),
         _stubs_lock(),
@@ -186,6 +291,9 @@ class Profiler {
         for (int i = 0; i < CONCURRENCY_LEVEL; i++) {
             _calltrace_buffer[i] = NULL;
         }
+        for (int i = 0; i < METRIC_COUNT; i++) {
+            _last_metrics[i] = 0;
+        }
     }
 
     static Profiler* instance() {
@@ -193,10 +301,18 @@ class Profiler {
     }
 
     u64 total_samples() { return _total_samples; }
+    void getMetrics(u64* metrics);
     time_t uptime()     { return time(NULL) - _start_time; }
 
     Dictionary* classMap() { return &_class_map; }
     ThreadFilter* threadFilter() { return &_thread_filter; }
+    ContextStorage* contexts() { return &_contexts; }
+
+    void setLoopListener(JNIEnv* jni, jobject listener);
+
+    void addThreadPattern(JNIEnv* jni, const char* pattern);
+    void addThreadGroup(JNIEnv* jni, jobject group);
+    void clearThreadRules(JNIEnv* jni);
 
     Error run(Arguments& args);
     Error runInternal(Arguments& args, std::ostream& out);
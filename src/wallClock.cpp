@@ -35,6 +35,7 @@ const long MIN_INTERVAL = 100000;
 
 long WallClock::_interval;
 bool WallClock::_sample_idle_threads;
+bool WallClock::_scoped;
 
 ThreadState WallClock::getThreadState(void* ucontext) {
     StackFrame frame(ucontext);
@@ -76,6 +77,7 @@ Error WallClock::start(Arguments& args) {
     }
 
     _sample_idle_threads = strcmp(args._event, EVENT_WALL) == 0;
+    _scoped = args._scoped;
 
     // Increase default interval for wall clock mode due to larger number of sampled threads
     _interval = args._interval ? args._interval : (_sample_idle_threads ? DEFAULT_INTERVAL * 5 : DEFAULT_INTERVAL);
@@ -101,6 +103,8 @@ void WallClock::timerLoop() {
     int self = OS::threadId();
     ThreadFilter* thread_filter = Profiler::instance()->threadFilter();
     bool thread_filter_enabled = thread_filter->enabled();
+    ContextStorage* contexts = Profiler::instance()->contexts();
+    bool scoped = _scoped;
     bool sample_idle_threads = _sample_idle_threads;
 
     ThreadList* thread_list = OS::listThreads();
@@ -129,6 +133,11 @@ void WallClock::timerLoop() {
                 continue;
             }
 
+            // Do not signal threads outside ProfilingScope at all
+            if (scoped && contexts->get(thread_id).scope == 0) {
+                continue;
+            }
+
             if (sample_idle_threads || OS::threadState(thread_id) == THREAD_RUNNING) {
                 if (OS::sendSignalToThread(thread_id, SIGVTALRM)) {
                     count++;
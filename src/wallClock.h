@@ -28,6 +28,7 @@ class WallClock : public Engine {
   private:
     static long _interval;
     static bool _sample_idle_threads;
+    static bool _scoped;
 
     volatile bool _running;
     pthread_t _thread;
@@ -56,6 +57,15 @@ class WallClock : public Engine {
 
     Error start(Arguments& args);
     void stop();
+
+    long interval() {
+        return _interval;
+    }
+
+    // Takes effect from the next cycle of the timer loop
+    void setInterval(long interval) {
+        _interval = interval;
+    }
 };
 
 #endif // _WALLCLOCK_H